@@ -0,0 +1,176 @@
+package ilda;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Optimises all frames of an animation concurrently with the same OptimisationSettings, for example to prepare an
+ * imported show for a different projector.
+ * The frames are split in a few ranges per thread. Every range gets its own Optimiser, so the scratch buffers are
+ * reused from frame to frame without locking, and nothing is left behind on the pool threads after a run.
+ * <p>
+ * Frames are changed in place, frames that share their points with another frame get their own copy first.
+ * After a run, the amount of points and the time it took can be queried. These statistics are not synchronised, so
+ * one instance must not run two batches at once.
+ * </p>
+ * Example:
+ * <pre>
+ * BatchOptimiser batch = new BatchOptimiser(settings);
+ * batch.optimise(frames);
+ * println(batch.getFrameCount() + " frames at " + batch.getPointsPerSecond() + " points per second");
+ * </pre>
+ */
+public class BatchOptimiser
+{
+    private static final int THRESHOLD = 4;
+
+    private volatile OptimisationSettings settings;
+
+    private int frameCount;
+    private long pointsIn;
+    private long pointsOut;
+    private long nanos;
+
+    public BatchOptimiser(OptimisationSettings settings)
+    {
+        this.settings = settings;
+    }
+
+    public OptimisationSettings getSettings()
+    {
+        return settings;
+    }
+
+    public void setSettings(OptimisationSettings settings)
+    {
+        this.settings = settings;
+    }
+
+    /**
+     * Optimises frames in the common pool
+     * @param frames the frames
+     */
+
+    public void optimise(List<IldaFrame> frames)
+    {
+        optimise(frames, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Optimises frames concurrently. Waits until all frames are done.
+     * @param frames the frames
+     * @param pool   the pool that optimises the frames
+     */
+
+    public void optimise(List<IldaFrame> frames, ForkJoinPool pool)
+    {
+        AtomicLong in = new AtomicLong();
+        AtomicLong out = new AtomicLong();
+        //Ranges big enough that every Optimiser is reused for many frames, with enough of them to keep the threads busy
+        int rangeSize = Math.max(THRESHOLD, frames.size() / (pool.getParallelism() * 4));
+        long start = System.nanoTime();
+        pool.invoke(new OptimiseTask(settings, frames, 0, frames.size(), rangeSize, in, out));
+        nanos = System.nanoTime() - start;
+        frameCount = frames.size();
+        pointsIn = in.get();
+        pointsOut = out.get();
+    }
+
+    /**
+     * @return amount of frames optimised in the last run
+     */
+
+    public int getFrameCount()
+    {
+        return frameCount;
+    }
+
+    /**
+     * @return amount of points before optimisation in the last run
+     */
+
+    public long getPointsIn()
+    {
+        return pointsIn;
+    }
+
+    /**
+     * @return amount of points after optimisation in the last run
+     */
+
+    public long getPointsOut()
+    {
+        return pointsOut;
+    }
+
+    /**
+     * @return duration of the last run in nanoseconds
+     */
+
+    public long getNanos()
+    {
+        return nanos;
+    }
+
+    /**
+     * @return points that were optimised per second in the last run, counting the points before optimisation
+     */
+
+    public double getPointsPerSecond()
+    {
+        return nanos == 0 ? 0 : pointsIn * 1e9 / nanos;
+    }
+
+    private static class OptimiseTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final OptimisationSettings settings;
+        private final List<IldaFrame> frames;
+        private final int from;
+        private final int to;
+        private final int rangeSize;
+        private final AtomicLong pointsIn;
+        private final AtomicLong pointsOut;
+
+        OptimiseTask(OptimisationSettings settings, List<IldaFrame> frames, int from, int to, int rangeSize, AtomicLong pointsIn, AtomicLong pointsOut)
+        {
+            this.settings = settings;
+            this.frames = frames;
+            this.from = from;
+            this.to = to;
+            this.rangeSize = rangeSize;
+            this.pointsIn = pointsIn;
+            this.pointsOut = pointsOut;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (to - from <= rangeSize)
+            {
+                Optimiser optimiser = new Optimiser(settings);
+                long in = 0;
+                long out = 0;
+                for (int i = from; i < to; i++)
+                {
+                    IldaFrame frame = frames.get(i);
+                    PointBuffer points = frame.getPointBuffer();
+                    in += points.size();
+                    optimiser.optimiseSegment(points);
+                    frame.pointCount = points.size();
+                    out += points.size();
+                }
+                pointsIn.addAndGet(in);
+                pointsOut.addAndGet(out);
+            } else
+            {
+                int mid = (from + to) >>> 1;
+                invokeAll(new OptimiseTask(settings, frames, from, mid, rangeSize, pointsIn, pointsOut),
+                        new OptimiseTask(settings, frames, mid, to, rangeSize, pointsIn, pointsOut));
+            }
+        }
+    }
+}
@@ -1,15 +1,28 @@
 package ilda;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
-import static java.nio.file.Files.readAllBytes;
-
+/**
+ * Holds the contents of a file in a big-endian ByteBuffer and parses it.
+ * The contents can come from a path on disk, an InputStream (eg. a classpath resource or a zip entry)
+ * or any ReadableByteChannel.
+ */
 class FileParser
 {
-    protected String location;
-    protected byte[] b;
+    private static final int STRING_CACHE_SIZE = 1024;
+    private static final CachedString[] stringCache = new CachedString[STRING_CACHE_SIZE];
 
-    int position = 0;
+    protected String location;
+    protected ByteBuffer buffer;
 
 
 
@@ -17,10 +30,10 @@ class FileParser
     FileParser(String location)
     {
         this.location = location;
-        try {
-            b = readAllBytes(new File(location).toPath());
+        try (FileChannel channel = FileChannel.open(Paths.get(location), StandardOpenOption.READ)) {
+            buffer = readFully(channel);
         } catch (Exception e) {
-            b = null;
+            buffer = null;
 
         }
     }
@@ -30,36 +43,136 @@ class FileParser
         this(file.getAbsolutePath());
     }
 
+    FileParser(InputStream stream) throws IOException
+    {
+        this(Channels.newChannel(stream));
+    }
+
+    FileParser(ReadableByteChannel channel) throws IOException
+    {
+        location = channel.toString();
+        buffer = readFully(channel);
+    }
+
+    /**
+     * Reads everything that remains in a channel into a heap buffer. The channel is not closed.
+     * @param channel the channel to read
+     * @return big-endian buffer with position 0 and the channel's contents up to its limit
+     * @throws IOException when reading fails
+     */
+
+    static ByteBuffer readFully(ReadableByteChannel channel) throws IOException
+    {
+        ByteBuffer out;
+        if (channel instanceof FileChannel)
+        {
+            FileChannel fileChannel = (FileChannel) channel;
+            long size = fileChannel.size() - fileChannel.position();
+            if (size > Integer.MAX_VALUE) throw new IOException("File is too large to be read in memory");
+            out = ByteBuffer.allocate((int) size);
+        } else out = ByteBuffer.allocate(65536);
+
+        while (true)
+        {
+            if (!out.hasRemaining())
+            {
+                if (channel instanceof FileChannel) break;
+                ByteBuffer bigger = ByteBuffer.allocate(out.capacity() * 2);
+                out.flip();
+                bigger.put(out);
+                out = bigger;
+            }
+            if (channel.read(out) < 0) break;
+        }
+        out.flip();
+        return out.order(ByteOrder.BIG_ENDIAN);
+    }
+
     byte parseByte()
     {
-        return (byte) (b[position++] & 0xff);
+        return buffer.get();
     }
 
     short parseShort()
     {
-        return (short) (b[position++] << 8 | (b[position++] & 0xff));
+        return buffer.getShort();
     }
 
     String parseString(int length)
     {
-        StringBuilder out = new StringBuilder();
-        for(int i = 0; i < length; i++)
-        {
-            out.append((char) b[position++]);
-        }
-        return out.toString();
+        String out = readString(buffer, buffer.position(), length);
+        skip(length);
+        return out;
     }
 
     void skip(int times)
     {
-        for(int i = 0;i <times;i++)
+        buffer.position(buffer.position() + times);
+    }
+
+    void reset()
+    {
+        buffer.position(0);
+    }
+
+    /**
+     * Returns a view on part of the file without copying it
+     * @param offset start of the view
+     * @param length length of the view
+     * @return a big-endian buffer sharing its content with this parser
+     */
+
+    ByteBuffer slice(int offset, int length)
+    {
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.limit(offset + length);
+        return view.slice().order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * Decodes a string of single-byte characters without moving the buffer's position.
+     * Strings of eight characters (the name fields in headers) are interned: the same name is only decoded once and
+     * all frames with that name share the same String instance.
+     * @param buffer buffer to read from
+     * @param offset absolute position of the first character
+     * @param length amount of characters
+     * @return the decoded string
+     */
+
+    static String readString(ByteBuffer buffer, int offset, int length)
+    {
+        if (length != 8) return decodeString(buffer, offset, length);
+
+        long key = buffer.getLong(offset);
+        int slot = (int) (key ^ (key >>> 29) ^ (key >>> 47)) & (STRING_CACHE_SIZE - 1);
+        CachedString cached = stringCache[slot];
+        if (cached != null && cached.key == key) return cached.value;
+
+        String value = decodeString(buffer, offset, length);
+        stringCache[slot] = new CachedString(key, value);
+        return value;
+    }
+
+    private static String decodeString(ByteBuffer buffer, int offset, int length)
+    {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++)
         {
-            position++;
+            chars[i] = (char) (buffer.get(offset + i) & 0xff);
         }
+        return new String(chars);
     }
 
-    void reset()
+    private static class CachedString
     {
-        position = 0;
+        final long key;
+        final String value;
+
+        CachedString(long key, String value)
+        {
+            this.key = key;
+            this.value = value;
+        }
     }
 }
@@ -0,0 +1,177 @@
+package ilda;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Describes how often frames with identical points occur in an animation, see IldaWriter.findRepeats().
+ * A run is a sequence of at least two consecutive identical frames, for example a hold.
+ */
+public class FrameRepeatReport
+{
+    protected int frames;
+    protected int uniqueFrames;
+    protected int runs;
+    protected int framesInRuns;
+    protected int longestRun;
+    protected long repeatedPoints;
+    protected long repeatedFrameBytes;
+    protected long repeatedPointRecords;
+
+    static FrameRepeatReport analyse(List<IldaFrame> frames)
+    {
+        FrameRepeatReport report = new FrameRepeatReport();
+        report.frames = frames.size();
+
+        HashMap<Integer, ArrayList<IldaFrame>> seen = new HashMap<Integer, ArrayList<IldaFrame>>();
+        //Hashes of points shared by several frames, so they are only hashed once
+        IdentityHashMap<Object, Integer> sharedHashes = new IdentityHashMap<Object, Integer>();
+        IldaFrame previous = null;
+        int run = 1;
+        for (IldaFrame frame : frames)
+        {
+            //Runs of consecutive repeats
+            if (previous != null && frame.hasSamePoints(previous))
+            {
+                run++;
+            } else
+            {
+                report.endRun(run);
+                run = 1;
+            }
+            previous = frame;
+
+            //Repeats of any earlier frame
+            int hash;
+            if (frame.isSharingPoints())
+            {
+                Object storage = frame.points != null ? frame.points : frame.pointBuffer;
+                Integer known = sharedHashes.get(storage);
+                if (known == null)
+                {
+                    known = frame.pointsHash();
+                    sharedHashes.put(storage, known);
+                }
+                hash = known;
+            } else hash = frame.pointsHash();
+            ArrayList<IldaFrame> candidates = seen.get(hash);
+            if (candidates == null)
+            {
+                candidates = new ArrayList<IldaFrame>(1);
+                seen.put(hash, candidates);
+            }
+            boolean repeated = false;
+            for (IldaFrame candidate : candidates)
+            {
+                if (frame.hasSamePoints(candidate))
+                {
+                    repeated = true;
+                    break;
+                }
+            }
+            if (repeated)
+            {
+                report.repeatedPoints += frame.countPoints();
+                report.repeatedFrameBytes += IldaHeader.SIZE;
+            } else
+            {
+                candidates.add(frame);
+                report.uniqueFrames++;
+            }
+        }
+        report.endRun(run);
+        return report;
+    }
+
+    private void endRun(int run)
+    {
+        if (run < 2) return;
+        runs++;
+        framesInRuns += run;
+        if (run > longestRun) longestRun = run;
+    }
+
+    public int getFrames()
+    {
+        return frames;
+    }
+
+    /**
+     * @return amount of frames whose points differ from all frames before them
+     */
+
+    public int getUniqueFrames()
+    {
+        return uniqueFrames;
+    }
+
+    /**
+     * @return amount of frames that are identical to an earlier frame
+     */
+
+    public int getRepeatedFrames()
+    {
+        return frames - uniqueFrames;
+    }
+
+    /**
+     * @return amount of sequences of at least two consecutive identical frames
+     */
+
+    public int getRuns()
+    {
+        return runs;
+    }
+
+    /**
+     * @return total amount of frames that are part of a run
+     */
+
+    public int getFramesInRuns()
+    {
+        return framesInRuns;
+    }
+
+    public int getLongestRun()
+    {
+        return longestRun;
+    }
+
+    /**
+     * @return total amount of points in frames that repeat an earlier frame
+     */
+
+    public long getRepeatedPoints()
+    {
+        return repeatedPoints;
+    }
+
+    /**
+     * How many bytes of an ilda file are taken by frames that repeat an earlier frame
+     * @param ildaVersion format of the file
+     * @return bytes used by repeated frames, headers included
+     */
+
+    public long getRepeatedBytes(int ildaVersion)
+    {
+        return repeatedFrameBytes + repeatedPoints * IldaHeader.recordSize(ildaVersion);
+    }
+
+    /**
+     * @return fraction of frames that could be shared, between 0 and 1
+     */
+
+    public float getSavingRatio()
+    {
+        return frames == 0 ? 0 : (float) getRepeatedFrames() / frames;
+    }
+
+    @Override
+    public String toString()
+    {
+        return frames + " frames, " + uniqueFrames + " unique, " + getRepeatedFrames() + " repeated (" + repeatedPoints
+                + " points) in " + runs + " runs, longest run " + longestRun + " frames.";
+    }
+}
@@ -4,6 +4,8 @@ import processing.core.PApplet;
 import processing.core.PGraphics;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import static processing.core.PApplet.binary;
 import static processing.core.PApplet.println;
@@ -13,7 +15,10 @@ import static processing.core.PApplet.println;
  */
 public class IldaFrame {
     ArrayList<IldaPoint> points = new ArrayList<IldaPoint>();
-    //The Points in the Frame
+    //The Points in the Frame, null when they are stored in pointBuffer
+
+    PointBuffer pointBuffer;
+    //The Points in the Frame as primitive arrays, null when they are stored in points
 
 
     protected int ildaVersion = 4;    //Data retrieved from header
@@ -50,11 +55,25 @@ public class IldaFrame {
     protected int scannerHead;
     protected boolean palette = false;
 
+    //True if the points are shared with other frames with identical content, they are copied before any change
+    boolean sharedPoints = false;
+
 
     /*ilda frame*/
     public IldaFrame() {
     }
 
+    /**
+     * Creates a frame that stores its points in a PointBuffer instead of a list of IldaPoints
+     *
+     * @param points the points of the frame, the buffer is used directly and not copied
+     */
+
+    public IldaFrame(PointBuffer points) {
+        this.points = null;
+        pointBuffer = points;
+    }
+
     /**
      * Set the ilda version this frame uses.
      * 0 = 3D, palette
@@ -76,7 +95,8 @@ public class IldaFrame {
     }
 
     public void addPoint(IldaPoint point) {
-        if (point != null) points.add(point);
+        detachPoints();
+        if (point != null) pointList().add(point);
     }
 
     public PGraphics renderFrame(PApplet parent) {
@@ -165,23 +185,26 @@ public class IldaFrame {
         pg.translate((float) (-sizex * 0.5), (float) (-sizey * 0.5), (float) (-(sizex + sizey) * 0.25));
 
 
+        PointBuffer points = pointsAsBuffer();
         if (points.size() > 0)
         {
             boolean firstPoint = true;
             float oldpositionx = 0;
             float oldpositiony = 0;
             float oldpositionz = 0;
-            for (IldaPoint point : points)
+            for (int i = 0; i < points.size(); i++)
             {
-                float pointx = (point.x + 1) * sizex * 0.5f;
-                float pointy = (point.y + 1) * sizey * 0.5f;
-                float pointz = (point.z + 1) * (sizex + sizey) * 0.25f;
-                if (showBlanking || !point.blanked)
+                float pointx = (points.getX(i) + 1) * sizex * 0.5f;
+                float pointy = (points.getY(i) + 1) * sizey * 0.5f;
+                float pointz = (points.getZ(i) + 1) * (sizex + sizey) * 0.25f;
+                boolean blanked = points.isBlanked(i);
+                int colour = points.getColour(i);
+                if (showBlanking || !blanked)
                 {
                     pg.strokeWeight(3);
                     //pg.stroke(point.colour); //??? y u no work ლ(ಠ益ಠლ)
-                    pg.stroke((point.colour >> 16) & 0xFF, (point.colour >> 8) & 0xFF, point.colour & 0xFF,255);
-                    if (point.blanked) {
+                    pg.stroke((colour >> 16) & 0xFF, (colour >> 8) & 0xFF, colour & 0xFF,255);
+                    if (blanked) {
                         pg.stroke(75, 255);
                     }
                     pg.point(pointx, pointy, pointz);
@@ -190,7 +213,7 @@ public class IldaFrame {
 
                 if (!firstPoint) {
                     pg.strokeWeight(1);
-                    if (!showBlanking && point.blanked) pg.stroke(0, 255);
+                    if (!showBlanking && blanked) pg.stroke(0, 255);
                     else {
                         pg.line(pointx, pointy, pointz, oldpositionx, oldpositiony, oldpositionz);
                     }
@@ -212,18 +235,171 @@ public class IldaFrame {
     }
 
     public void palettePaint(IldaPalette palette) {
-        for (IldaPoint point : points) {
-            point.colour = palette.getColour(point.palIndex);
+        detachPoints();
+        //Colours past the end of the palette are 0, so every index can be looked up without a check
+        if (points != null) {
+            for (IldaPoint point : points) {
+                point.colour = palette.lookup(point.palIndex);
+            }
+        } else {
+            PointBuffer buffer = pointBuffer();
+            int[] bufferColours = buffer.colour;
+            byte[] palIndex = buffer.palIndex;
+            for (int i = 0, n = buffer.size(); i < n; i++) {
+                bufferColours[i] = palette.lookup(palIndex[i]);
+            }
         }
     }
 
+    /**
+     * Returns the points of this frame as a list of IldaPoints.
+     * If the frame stores its points in a PointBuffer, they are converted to IldaPoints first and the frame keeps
+     * using the list from then on. Use getPointBuffer() to avoid this conversion.
+     *
+     * @return the points of this frame, changes to the list or its points change the frame
+     */
+
     public ArrayList<IldaPoint> getPoints() {
+        detachPoints();
+        return pointList();
+    }
+
+    /**
+     * Gives read access to the points without copying them if they are shared with other frames.
+     * The points themselves should not be changed either.
+     *
+     * @return an unmodifiable list of this frame's points
+     */
+
+    public List<IldaPoint> getPointsReadOnly() {
+        if (points == null) return Collections.unmodifiableList(pointsAsBuffer().toPoints());
+        return Collections.unmodifiableList(points);
+    }
+
+    /**
+     * Returns the points of this frame as a PointBuffer.
+     * If the frame stores its points as a list of IldaPoints, they are copied into a buffer first and the frame keeps
+     * using the buffer from then on: IldaPoints retrieved earlier with getPoints() no longer belong to the frame.
+     *
+     * @return the points of this frame, changes to the buffer change the frame
+     */
+
+    public PointBuffer getPointBuffer() {
+        detachPoints();
+        return pointBuffer();
+    }
+
+    /**
+     * Frames with identical points can share them to save memory, for example when deduplicating frames while reading
+     * a file. Shared points are never modified: getPoints() first gives the frame its own copy.
+     *
+     * @return true if this frame currently shares its points with other frames
+     */
+
+    public boolean isSharingPoints() {
+        return sharedPoints;
+    }
+
+    /**
+     * Makes this frame use the points of another frame, which must not be modified anymore
+     * @param other frame with identical points
+     */
+
+    void sharePoints(IldaFrame other) {
+        if (other.points == null) other.pointBuffer();
+        other.sharedPoints = true;
+        points = other.points;
+        pointBuffer = other.pointBuffer;
+        sharedPoints = true;
+    }
+
+    /**
+     * Gives this frame its own copy of its points if it shares them with other frames
+     */
+
+    void detachPoints() {
+        if (!sharedPoints) return;
+        if (points != null) {
+            ArrayList<IldaPoint> copy = new ArrayList<IldaPoint>(points.size());
+            for (IldaPoint point : points) {
+                copy.add(new IldaPoint(point));
+            }
+            points = copy;
+        } else {
+            pointBuffer = pointBuffer.copy();
+        }
+        sharedPoints = false;
+    }
+
+    /**
+     * @param other another frame
+     * @return true if both frames have the same points in the same order
+     */
+
+    boolean hasSamePoints(IldaFrame other) {
+        if (points != null && points == other.points) return true;
+        if (pointBuffer != null && pointBuffer == other.pointBuffer) return true;
+        return pointsAsBuffer().contentEquals(other.pointsAsBuffer());
+    }
+
+    /**
+     * @return a hash of the points of this frame, equal for frames for which hasSamePoints() is true
+     */
+
+    int pointsHash() {
+        return pointsAsBuffer().contentHash();
+    }
+
+    /**
+     * Gives access to the points of this frame as a list, converting them from the PointBuffer if needed.
+     * The library uses this instead of the points field so a frame can provide its points on demand.
+     * @return the points of this frame
+     */
+
+    ArrayList<IldaPoint> pointList() {
+        if (points == null) {
+            points = pointBuffer.toPoints();
+            pointBuffer = null;
+            sharedPoints = false;
+        }
         return points;
     }
 
+    /**
+     * Gives access to the points of this frame as a PointBuffer, converting them from the list if needed
+     * @return the points of this frame
+     */
+
+    PointBuffer pointBuffer() {
+        if (pointBuffer == null) {
+            pointBuffer = PointBuffer.fromPoints(points);
+            points = null;
+            sharedPoints = false;
+        }
+        return pointBuffer;
+    }
+
+    /**
+     * Read access to the points without changing how the frame stores them.
+     * This is either the frame's own buffer or a copy of its list of points, so it must not be modified.
+     * @return the points of this frame
+     */
+
+    PointBuffer pointsAsBuffer() {
+        return pointBuffer != null ? pointBuffer : PointBuffer.fromPoints(points);
+    }
+
+    /**
+     * @return the amount of points in this frame, without needing to provide the points themselves
+     */
+
+    int countPoints() {
+        return points != null ? points.size() : pointBuffer.size();
+    }
+
     @Override
     public String toString() {
-        return "This frame has " + points.size() + " points.\nIt's called " + frameName + ".";
+        return "This frame has " + countPoints() + " points.\nIt's called " + frameName + ".";
     }
 
     public int getIldaVersion() {
@@ -281,7 +457,7 @@ public class IldaFrame {
     {
         frame.frameNumber = frameNumber;
         frame.totalFrames = totalFrames;
-        frame.pointCount = frame.points.size();
+        frame.pointCount = frame.countPoints();
         frame.frameName = frameName;
         frame.companyName = companyName;
     }
@@ -0,0 +1,228 @@
+package ilda;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The 32 byte header that precedes every frame or palette in an ilda file.
+ * It knows the size of the records that follow it, so it can be used to decode them or to skip over them.
+ *
+ * Layout:
+ * <ul>
+ * <li>Bytes 0-3: "ILDA"</li>
+ * <li>Bytes 4-6: reserved</li>
+ * <li>Byte 7: format code</li>
+ * <li>Bytes 8-15: frame or palette name</li>
+ * <li>Bytes 16-23: company name</li>
+ * <li>Bytes 24-25: point count or colour count</li>
+ * <li>Bytes 26-27: frame number or palette number</li>
+ * <li>Bytes 28-29: total frames</li>
+ * <li>Byte 30: projector number</li>
+ * <li>Byte 31: reserved</li>
+ * </ul>
+ */
+class IldaHeader
+{
+    static final int SIZE = 32;
+
+    int ildaVersion;
+    String name;
+    String company;
+    int pointCount;
+    int frameNumber;
+    int totalFrames;
+    int scannerHead;
+
+    /**
+     * Reads a header at the current position of the buffer and advances the buffer past it.
+     * The buffer should have at least 32 bytes remaining.
+     * @param buffer big-endian buffer positioned at the start of a header
+     * @return the header, or null if the bytes don't start with "ILDA" (the buffer is then left untouched)
+     */
+
+    static IldaHeader read(ByteBuffer buffer)
+    {
+        int start = buffer.position();
+        if (buffer.get(start) != 'I' || buffer.get(start + 1) != 'L' || buffer.get(start + 2) != 'D' || buffer.get(start + 3) != 'A')
+        {
+            return null;
+        }
+
+        IldaHeader header = new IldaHeader();
+        header.ildaVersion = buffer.get(start + 7) & 0xff;
+        header.name = FileParser.readString(buffer, start + 8, 8);
+        header.company = FileParser.readString(buffer, start + 16, 8);
+        header.pointCount = buffer.getShort(start + 24) & 0xffff;
+        header.frameNumber = buffer.getShort(start + 26) & 0xffff;
+        header.totalFrames = buffer.getShort(start + 28) & 0xffff;
+        header.scannerHead = buffer.get(start + 30) & 0xff;
+        buffer.position(start + SIZE);
+        return header;
+    }
+
+    /**
+     * Size in bytes of a single record following a header of the given format
+     * @param ildaVersion format code
+     * @return record size, or -1 for unknown formats
+     */
+
+    static int recordSize(int ildaVersion)
+    {
+        switch (ildaVersion)
+        {
+            case 0:
+                return 8;
+            case 1:
+                return 6;
+            case 2:
+                return 3;
+            case 4:
+                return 10;
+            case 5:
+                return 8;
+            default:
+                return -1;
+        }
+    }
+
+    int recordSize()
+    {
+        return recordSize(ildaVersion);
+    }
+
+    /**
+     * @return amount of bytes between the end of this header and the start of the next one
+     */
+
+    int payloadSize()
+    {
+        return pointCount * recordSize();
+    }
+
+    boolean isPaletteHeader()
+    {
+        return ildaVersion == 2;
+    }
+
+    boolean usesPalette()
+    {
+        return ildaVersion == 0 || ildaVersion == 1;
+    }
+
+    boolean is3D()
+    {
+        return ildaVersion == 0 || ildaVersion == 4;
+    }
+
+    /**
+     * Creates an empty frame with the properties of this header
+     * @return frame without points, storing its points in a PointBuffer with room for pointCount points
+     */
+
+    IldaFrame createFrame()
+    {
+        return createFrame(false);
+    }
+
+    /**
+     * @param nativeCoordinates store the coordinates of the frame as 16 bit integers
+     * @return frame without points, storing its points in a PointBuffer with room for pointCount points
+     */
+
+    IldaFrame createFrame(boolean nativeCoordinates)
+    {
+        return setProperties(new IldaFrame(new PointBuffer(pointCount, nativeCoordinates)));
+    }
+
+    /**
+     * Creates a frame with the properties of this header that shares the points of an identical frame, without
+     * allocating room for points of its own
+     * @param original frame with the same points, see IldaFrame.sharePoints()
+     * @return frame sharing the points of the original
+     */
+
+    IldaFrame createSharedFrame(IldaFrame original)
+    {
+        IldaFrame frame = setProperties(new IldaFrame((PointBuffer) null));
+        frame.sharePoints(original);
+        return frame;
+    }
+
+    private IldaFrame setProperties(IldaFrame frame)
+    {
+        frame.setIldaFormat(ildaVersion);
+        frame.setFrameName(name);
+        frame.setCompanyName(company);
+        frame.setFrameNumber(frameNumber);
+        frame.pointCount = pointCount;
+        frame.setTotalFrames(totalFrames);
+        frame.setScannerHead(scannerHead);
+        frame.setPalette(usesPalette());
+        return frame;
+    }
+
+    /**
+     * Decodes one point record at the current position of the buffer according to this header's format
+     * and adds it to a PointBuffer. Format 0 and 1 points only get their palette index, not their colour.
+     * @param buffer big-endian buffer with at least recordSize() bytes remaining
+     * @param points the buffer the point is added to
+     */
+
+    void readPoint(ByteBuffer buffer, PointBuffer points)
+    {
+        short x = buffer.getShort();
+        short y = buffer.getShort();
+        short z = 0;
+        if (is3D()) z = buffer.getShort();
+        boolean bl = (buffer.get() & 0x40) == 64;
+        int colour = 0;
+        int palIndex = 0;
+        if (usesPalette())
+        {
+            palIndex = buffer.get() & 0xff;
+        } else
+        {
+            int blue = buffer.get() & 0xff;
+            int green = buffer.get() & 0xff;
+            int red = buffer.get() & 0xff;
+            colour = (red << 16) | (green << 8) | blue;
+        }
+
+        if (points.isNativeCoordinates())
+        {
+            int i = points.add(0, 0, 0, colour, bl, palIndex);
+            points.setNativePosition(i, x, y, z);
+        } else
+        {
+            points.add(x * 0.00003051757f, y * -0.00003051757f, z * 0.00003051757f, colour, bl, palIndex);
+        }
+    }
+
+    /**
+     * Creates a palette from this (format 2) header. The colours still need to be added.
+     * @return empty palette with this header's properties
+     */
+
+    IldaPalette createPalette()
+    {
+        IldaPalette palette = new IldaPalette();
+        palette.name = name;
+        palette.companyName = company;
+        palette.totalColors = pointCount;
+        palette.paletteNumber = frameNumber;
+        palette.scannerHead = scannerHead;
+        return palette;
+    }
+
+    /**
+     * Decodes one colour record of a palette
+     * @param buffer big-endian buffer with at least three bytes remaining
+     * @param palette the palette the colour gets added to
+     */
+
+    static void readColour(ByteBuffer buffer, IldaPalette palette)
+    {
+        byte r = buffer.get(), g = buffer.get(), b = buffer.get();
+        //A malformed palette header can declare more colours than an index can refer to
+        if (palette.getColourCount() < IldaPalette.MAX_COLOURS) palette.addColour(r, g, b);
+    }
+}
@@ -0,0 +1,279 @@
+package ilda;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Positions of all frame and palette headers in a buffer containing an ilda file.
+ * The index is built in a single pass that only looks at the headers: the point count and format code of each header
+ * determine where the next one starts, so no point data is read.
+ * Any frame can then be decoded on its own, together with the palette that was in effect for it.
+ */
+class IldaIndex
+{
+    private int[] frameOffsets = new int[64];
+    private int frameCount;
+
+    //A palette header applies to all frames after it, up to the next palette header
+    private int[] paletteOffsets = new int[4];
+    private int[] paletteFirstFrames = new int[4];
+    private int paletteCount;
+    private IldaPalette[] palettes;
+    //Used for frames that come before the first palette header
+    private IldaPalette fallbackPalette;
+
+    /**
+     * Scans the headers of an ilda file.
+     * @param buffer big-endian buffer that contains the file from index 0 to its limit, its position is not changed
+     * @return the index of all complete frames in the buffer
+     */
+
+    static IldaIndex scan(ByteBuffer buffer)
+    {
+        return scan(buffer, null);
+    }
+
+    /**
+     * Scans the headers of an ilda file.
+     * @param buffer   big-endian buffer that contains the file from index 0 to its limit, its position is not changed
+     * @param fallback palette for frames before the first palette header, or null for the default palette
+     * @return the index of all complete frames in the buffer
+     */
+
+    static IldaIndex scan(ByteBuffer buffer, IldaPalette fallback)
+    {
+        IldaIndex index = new IldaIndex();
+        index.fallbackPalette = fallback;
+        int limit = buffer.limit();
+        if (limit < IldaHeader.SIZE)
+        {
+            throw new RuntimeException("Error: file is not long enough to be a valid ILDA file!");
+        }
+
+        int position = 0;
+        while (position <= limit - IldaHeader.SIZE)
+        {
+            if (buffer.get(position) != 'I' || buffer.get(position + 1) != 'L' || buffer.get(position + 2) != 'D' || buffer.get(position + 3) != 'A')
+            {
+                if (position == 0)
+                {
+                    throw new RuntimeException("Error: invalid ILDA file, expected ILDA header");
+                }
+                break;
+            }
+            int ildaVersion = buffer.get(position + 7) & 0xff;
+            int pointCount = buffer.getShort(position + 24) & 0xffff;
+            int recordSize = IldaHeader.recordSize(ildaVersion);
+            if (recordSize < 0 || pointCount == 0) break;
+
+            long next = (long) position + IldaHeader.SIZE + (long) pointCount * recordSize;
+            if (next > limit) break;    //truncated
+
+            if (ildaVersion == 2) index.addPalette(position);
+            else index.addFrame(position);
+            position = (int) next;
+        }
+        index.palettes = new IldaPalette[index.paletteCount];
+        return index;
+    }
+
+    private void addFrame(int offset)
+    {
+        if (frameCount == frameOffsets.length) frameOffsets = Arrays.copyOf(frameOffsets, frameCount * 2);
+        frameOffsets[frameCount++] = offset;
+    }
+
+    private void addPalette(int offset)
+    {
+        if (paletteCount == paletteOffsets.length)
+        {
+            paletteOffsets = Arrays.copyOf(paletteOffsets, paletteCount * 2);
+            paletteFirstFrames = Arrays.copyOf(paletteFirstFrames, paletteCount * 2);
+        }
+        paletteOffsets[paletteCount] = offset;
+        paletteFirstFrames[paletteCount++] = frameCount;
+    }
+
+    int getFrameCount()
+    {
+        return frameCount;
+    }
+
+    int getFrameOffset(int frame)
+    {
+        if (frame < 0 || frame >= frameCount)
+        {
+            throw new IndexOutOfBoundsException("Frame " + frame + " does not exist, there are " + frameCount + " frames");
+        }
+        return frameOffsets[frame];
+    }
+
+    /**
+     * Decodes a single frame
+     * @param buffer the buffer this index was built from
+     * @param frame  index of the frame (0 is the first frame in the file)
+     * @return the decoded frame, coloured with its palette if it is a format 0 or 1 frame
+     */
+
+    IldaFrame decodeFrame(ByteBuffer buffer, int frame)
+    {
+        return decodeFrame(buffer, frame, false);
+    }
+
+    /**
+     * Decodes a single frame
+     * @param buffer            the buffer this index was built from
+     * @param frame             index of the frame (0 is the first frame in the file)
+     * @param nativeCoordinates store the coordinates as 16 bit integers, see PointBuffer
+     * @return the decoded frame, coloured with its palette if it is a format 0 or 1 frame
+     */
+
+    IldaFrame decodeFrame(ByteBuffer buffer, int frame, boolean nativeCoordinates)
+    {
+        ByteBuffer view = buffer.duplicate();
+        view.position(getFrameOffset(frame));
+        IldaHeader header = IldaHeader.read(view);
+        IldaFrame result = header.createFrame(nativeCoordinates);
+        PointBuffer points = result.pointBuffer;
+        for (int i = 0; i < header.pointCount; i++)
+        {
+            header.readPoint(view, points);
+        }
+        if (result.isPalette())
+        {
+            result.palettePaint(getPalette(buffer, frame));
+        }
+        return result;
+    }
+
+    /**
+     * Creates a frame with the header information of a frame that shares the points of an identical frame
+     * @param buffer   the buffer this index was built from
+     * @param frame    index of the frame
+     * @param original frame with the same points
+     * @return frame sharing the points of the original
+     */
+
+    IldaFrame createSharedFrame(ByteBuffer buffer, int frame, IldaFrame original)
+    {
+        ByteBuffer view = buffer.duplicate();
+        view.position(getFrameOffset(frame));
+        return IldaHeader.read(view).createSharedFrame(original);
+    }
+
+    /**
+     * @param buffer the buffer this index was built from
+     * @param frame  index of the frame
+     * @return the point records of the frame, to find frames with identical points
+     */
+
+    PointPayload getPayload(ByteBuffer buffer, int frame)
+    {
+        int offset = getFrameOffset(frame);
+        int ildaVersion = buffer.get(offset + 7) & 0xff;
+        int length = (buffer.getShort(offset + 24) & 0xffff) * IldaHeader.recordSize(ildaVersion);
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset + IldaHeader.SIZE);
+        view.limit(offset + IldaHeader.SIZE + length);
+        boolean usesPalette = ildaVersion == 0 || ildaVersion == 1;
+        return new PointPayload(view.slice(), ildaVersion, usesPalette ? getPalette(buffer, frame) : null);
+    }
+
+    /**
+     * Creates a frame that only decodes its points when they are needed
+     * @param buffer    the buffer this index was built from
+     * @param frame     index of the frame
+     * @param softCache only keep the decoded points softly reachable
+     * @return a frame with its header information and a view on its point records
+     */
+
+    IldaFrame lazyFrame(ByteBuffer buffer, int frame, boolean softCache)
+    {
+        ByteBuffer view = buffer.duplicate();
+        view.position(getFrameOffset(frame));
+        IldaHeader header = IldaHeader.read(view);
+        view.limit(view.position() + header.payloadSize());
+        IldaPalette palette = header.usesPalette() ? getPalette(buffer, frame) : null;
+        return new LazyIldaFrame(header, view.slice(), palette, softCache);
+    }
+
+    /**
+     * Decodes all palette headers, so getPalette() only reads from then on and can be called from multiple threads
+     * @param buffer the buffer this index was built from
+     */
+
+    void decodePalettes(ByteBuffer buffer)
+    {
+        for (int p = 0; p < paletteCount; p++)
+        {
+            if (palettes[p] == null) palettes[p] = decodePalette(buffer, p);
+        }
+    }
+
+    /**
+     * @param buffer the buffer this index was built from
+     * @return the last palette in the file, or null if it doesn't contain any
+     */
+
+    IldaPalette getLastPalette(ByteBuffer buffer)
+    {
+        return paletteCount == 0 ? null : getPalette(buffer, frameCount);
+    }
+
+    /**
+     * Returns the palette in effect for a frame, or the fallback palette if the file didn't specify one before it
+     * @param buffer the buffer this index was built from
+     * @param frame  index of the frame
+     * @return the palette
+     */
+
+    IldaPalette getPalette(ByteBuffer buffer, int frame)
+    {
+        int p = paletteIndex(frame);
+        if (p < 0)
+        {
+            return fallbackPalette != null ? fallbackPalette : IldaPalette.getDefaultPalette();
+        }
+        IldaPalette palette = palettes[p];
+        if (palette == null)
+        {
+            palette = decodePalette(buffer, p);
+            palettes[p] = palette;
+        }
+        return palette;
+    }
+
+    private IldaPalette decodePalette(ByteBuffer buffer, int p)
+    {
+        ByteBuffer view = buffer.duplicate();
+        view.position(paletteOffsets[p]);
+        IldaHeader header = IldaHeader.read(view);
+        IldaPalette palette = header.createPalette();
+        for (int i = 0; i < header.pointCount; i++)
+        {
+            IldaHeader.readColour(view, palette);
+        }
+        return palette.intern();
+    }
+
+    /**
+     * @return index of the last palette header before the frame, or -1 if there is none
+     */
+
+    private int paletteIndex(int frame)
+    {
+        int low = 0;
+        int high = paletteCount - 1;
+        int found = -1;
+        while (low <= high)
+        {
+            int mid = (low + high) >>> 1;
+            if (paletteFirstFrames[mid] <= frame)
+            {
+                found = mid;
+                low = mid + 1;
+            } else high = mid - 1;
+        }
+        return found;
+    }
+}
@@ -0,0 +1,92 @@
+package ilda;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Gives random access to the frames of an ilda file.
+ * The file is memory-mapped and opening it only costs a single pass over the headers, which builds an index with the
+ * position of every frame. After that, any frame can be decoded on demand in constant time, no matter where it is
+ * in the file. Frames that aren't requested are never decoded.
+ * <p>
+ * This is useful to scrub through long shows:
+ * </p>
+ * <pre>
+ * IldaIndexedReader reader = new IldaIndexedReader(sketchPath() + "/show.ild");
+ * IldaFrame frame = reader.getFrame(9000);
+ * </pre>
+ * Memory-mapping limits the file size to 2 GB.
+ */
+public class IldaIndexedReader implements Closeable
+{
+    private MappedByteBuffer buffer;
+    private final IldaIndex index;
+
+    public IldaIndexedReader(String location) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(Paths.get(location), StandardOpenOption.READ))
+        {
+            if (channel.size() > Integer.MAX_VALUE)
+            {
+                throw new IOException("Error: " + location + " is too large to be memory-mapped");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        index = IldaIndex.scan(buffer);
+    }
+
+    public IldaIndexedReader(File file) throws IOException
+    {
+        this(file.getAbsolutePath());
+    }
+
+    /**
+     * @return the amount of frames in the file, palettes not included
+     */
+
+    public int getFrameCount()
+    {
+        return index.getFrameCount();
+    }
+
+    /**
+     * Decodes a single frame from the file
+     * @param frame index of the frame, 0 is the first frame in the file
+     * @return the frame, format 0 and 1 frames are coloured using the last palette in the file before them
+     * @throws IndexOutOfBoundsException when the frame doesn't exist
+     */
+
+    public IldaFrame getFrame(int frame)
+    {
+        if (buffer == null) throw new IllegalStateException("Reader is closed");
+        return index.decodeFrame(buffer, frame);
+    }
+
+    /**
+     * Returns the palette in effect for a certain frame
+     * @param frame index of the frame
+     * @return the palette that would be used to colour the frame if it were a format 0 or 1 frame
+     */
+
+    public IldaPalette getPalette(int frame)
+    {
+        if (buffer == null) throw new IllegalStateException("Reader is closed");
+        index.getFrameOffset(frame);
+        return index.getPalette(buffer, frame);
+    }
+
+    /**
+     * Releases the mapping. It gets unmapped once it's garbage collected.
+     */
+
+    @Override
+    public void close()
+    {
+        buffer = null;
+    }
+}
@@ -1,26 +1,93 @@
 package ilda;
 
-import java.util.ArrayList;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
 
 /**
  * A Palette is a collection of colours. Points in a format 0 or 1 file have an index referring to a colour in a palette.
  * Changing a palette results in changing the colours of a frame.
+ * <p>
+ * A palette holds at most 256 colours, as a palette index is a single byte. Palettes that are shared between frames
+ * and files, such as the default palette and palettes returned by intern(), are immutable: use copy() to get a
+ * palette that can be changed. Readers paint frames with interned palettes, but the palettes they expose
+ * (IldaReader.getPalette(), IldaStreamReader.getPalette()) are never shared, so they can be changed.
+ * </p>
  */
 public class IldaPalette {
+    /**
+     * A palette index is a single byte, so a palette holds at most this many colours
+     */
+    public static final int MAX_COLOURS = 256;
+
+    private static final HashMap<Key, Entry> registry = new HashMap<Key, Entry>();
+    private static final ReferenceQueue<IldaPalette> collected = new ReferenceQueue<IldaPalette>();
+    //Declared after the registry, which it is added to
+    private static final IldaPalette DEFAULT_PALETTE = createDefaultPalette();
+
     String name;
     String companyName;
     int totalColors;
     int paletteNumber;
     int scannerHead;
 
-    ArrayList<Integer> colours = new ArrayList<Integer>();
+    //Unused entries stay 0, so any palette index can be looked up directly
+    private final int[] colours = new int[MAX_COLOURS];
+    private int colourCount = 0;
+    private boolean immutable = false;
+    private PaletteQuantiser quantiser;
 
     public IldaPalette() {
 
     }
 
+    /**
+     * Returns the standard 64 colour palette. All readers share this instance for files without a palette.
+     *
+     * @return the immutable default palette
+     */
+
+    public static IldaPalette getDefaultPalette() {
+        return DEFAULT_PALETTE;
+    }
+
+    /**
+     * Adds a colour to the end of the palette
+     *
+     * @throws IllegalStateException if the palette already has 256 colours or is immutable
+     */
+
     public void addColour(int r, int g, int b) {
-        colours.add(((r & 0xFF) << 16) + ((g & 0xFF) << 8) + ((b & 0xFF)));
+        checkMutable();
+        if (colourCount == MAX_COLOURS) throw new IllegalStateException("A palette can't hold more than " + MAX_COLOURS + " colours");
+        colours[colourCount++] = ((r & 0xFF) << 16) + ((g & 0xFF) << 8) + ((b & 0xFF));
+        quantiser = null;
+    }
+
+    /**
+     * @return the amount of colours in the palette
+     */
+
+    public int getColourCount() {
+        return colourCount;
+    }
+
+    /**
+     * Returns a quantiser that finds the colour in this palette closest to an RGB colour.
+     * It is created the first time it's needed and reused until the colours of the palette change.
+     *
+     * @return the quantiser for the current colours
+     */
+
+    public PaletteQuantiser getQuantiser() {
+        PaletteQuantiser q = quantiser;
+        if (q == null) {
+            q = new PaletteQuantiser(this);
+            quantiser = q;
+        }
+        return q;
     }
 
     /**
@@ -32,89 +99,133 @@ public class IldaPalette {
      */
 
     public int getColour(int index) {
-        if (index >= colours.size() || index < 0) return 0;
-        else return colours.get(index);
+        if (index >= colourCount || index < 0) return 0;
+        else return colours[index];
     }
 
     /**
-     * Converts the palette to bytes which can be added in front of an ilda file or stored separately
-     * @return array of bytes with ilda-compliant palette
+     * Looks up the colour of a palette index without a range check, unused entries are 0
+     *
+     * @param palIndex palette index of a point, only the lowest 8 bits are used
+     * @return the colour
      */
 
-    public byte[] paletteToBytes() {
-        ArrayList<Byte> theBytes;
-        theBytes = new ArrayList<Byte>();
+    int lookup(int palIndex) {
+        return colours[palIndex & 0xFF];
+    }
 
-        theBytes.add((byte) 'I');       //Bytes 1-4: "ILDA"
-        theBytes.add((byte) 'L');
-        theBytes.add((byte) 'D');
-        theBytes.add((byte) 'A');
-        theBytes.add((byte) 0);         //Bytes 5-8: Format Code 2
-        theBytes.add((byte) 0);
-        theBytes.add((byte) 0);
-        theBytes.add((byte) 2);
+    /**
+     * @return true if this palette is shared and can't be changed
+     */
 
+    public boolean isImmutable() {
+        return immutable;
+    }
 
-        for (int i = 0; i < 8; i++)    //Bytes 9-16: Name
-        {
-            char letter;
-            if (name.length() < i + 1) letter = ' ';
-            else letter = name.charAt(i);
-            theBytes.add((byte) letter);
-        }
+    /**
+     * @return a new palette with the same properties and colours, which can be changed
+     */
 
+    public IldaPalette copy() {
+        IldaPalette copy = new IldaPalette();
+        copy.name = name;
+        copy.companyName = companyName;
+        copy.totalColors = totalColors;
+        copy.paletteNumber = paletteNumber;
+        copy.scannerHead = scannerHead;
+        System.arraycopy(colours, 0, copy.colours, 0, colourCount);
+        copy.colourCount = colourCount;
+        return copy;
+    }
 
-        if (companyName == null)   //Bytes 17-24: Company Name
-        {
-            theBytes.add((byte) 'I');
-            theBytes.add((byte) 'l');
-            theBytes.add((byte) 'd');
-            theBytes.add((byte) 'a');
-            theBytes.add((byte) '4');
-            theBytes.add((byte) 'P');
-            theBytes.add((byte) '5');
-            theBytes.add((byte) ' ');
-        } else {
-            for (int i = 0; i < 8; i++) {
-                char letter;
-                if (companyName.length() < i + 1) letter = ' ';
-                else letter = companyName.charAt(i);
-                theBytes.add((byte) letter);
+    /**
+     * Returns the shared, immutable palette with the same properties and colours as this palette.
+     * Files with the same palette get the same instance, so it's stored once and its quantiser is built once.
+     *
+     * @return an immutable palette equal to this palette, this palette itself if it's immutable already
+     */
+
+    public IldaPalette intern() {
+        if (immutable) return this;
+        Key key = new Key(this);
+        synchronized (registry) {
+            Entry stale;
+            while ((stale = (Entry) collected.poll()) != null) {
+                if (registry.get(stale.key) == stale) registry.remove(stale.key);
+            }
+
+            Entry entry = registry.get(key);
+            IldaPalette shared = entry == null ? null : entry.get();
+            if (shared == null) {
+                shared = copy();
+                shared.immutable = true;
+                key = new Key(shared);
+                registry.put(key, new Entry(shared, key));
             }
+            return shared;
         }
+    }
 
-        int totalSize = colours.size();
-        if (totalSize < 1) return null;
-        if (totalSize > 255) totalSize = 256;
+    private void checkMutable() {
+        if (immutable) throw new IllegalStateException("Palette " + name + " is shared and can't be changed, use copy()");
+    }
 
-        theBytes.add((byte) ((totalSize >> 8) & 0xff));              //Bytes 25-26: total colours
-        theBytes.add((byte) (totalSize & 0xff)); //Limited to 256 so byte 25 is redundant
+    /**
+     * Converts the palette to bytes which can be added in front of an ilda file or stored separately
+     * @return array of bytes with ilda-compliant palette, or null if the palette has no colours
+     */
 
+    public byte[] paletteToBytes() {
+        if (colourCount < 1) return null;
+        ByteBuffer buffer = ByteBuffer.allocate(getByteSize());
+        paletteToBytes(buffer);
+        return buffer.array();
+    }
 
-        //Bytes 27-28: Palette number
-        theBytes.add((byte) 0);    //This better be correct
-        theBytes.add((byte) 0);
+    /**
+     * @return amount of bytes of the palette in an ilda file, header included (0 if the palette has no colours)
+     */
 
-        theBytes.add((byte) 0);    //Bytes 29-30: Future
-        theBytes.add((byte) 0);
-        theBytes.add((byte) scannerHead); //Byte 31: Scanner head
-        theBytes.add((byte) 0);    //Also Future
+    public int getByteSize() {
+        if (colourCount < 1) return 0;
+        return IldaHeader.SIZE + colourCount * 3;
+    }
 
+    /**
+     * Writes the palette with its format 2 header at the current position of a buffer.
+     * Nothing is written if the palette has no colours.
+     * @param buffer big-endian buffer with at least getByteSize() bytes remaining
+     */
 
-        for (int i = 0; i < Math.min(256, colours.size()); i++)    //Rest: colour data
-        {
-            int colour = colours.get(i);
-            theBytes.add((byte) ((colour >> 16) & 0xFF));
-            theBytes.add((byte) ((colour >> 8) & 0xFF));
-            theBytes.add((byte) (colour & 0xFF));
-        }
+    public void paletteToBytes(ByteBuffer buffer) {
+        int totalSize = colourCount;
+        if (totalSize < 1) return;
 
-        byte[] bt = new byte[theBytes.size()];
-        for (int i = 0; i < theBytes.size(); i++) {
-            bt[i] = theBytes.get(i);
-        }
+        buffer.put((byte) 'I');       //Bytes 1-4: "ILDA"
+        buffer.put((byte) 'L');
+        buffer.put((byte) 'D');
+        buffer.put((byte) 'A');
+        buffer.put((byte) 0);         //Bytes 5-8: Format Code 2
+        buffer.put((byte) 0);
+        buffer.put((byte) 0);
+        buffer.put((byte) 2);
+
+        IldaWriter.putString(buffer, name);    //Bytes 9-16: Name
+        IldaWriter.putString(buffer, companyName == null || companyName.length() == 0 ? "Ilda4P5" : companyName);    //Bytes 17-24: Company Name
 
-        return bt;
+        buffer.putShort((short) totalSize);   //Bytes 25-26: total colours, limited to 256 so byte 25 is redundant
+        buffer.putShort((short) paletteNumber); //Bytes 27-28: Palette number
+        buffer.putShort((short) 0);           //Bytes 29-30: Future
+        buffer.put((byte) scannerHead);       //Byte 31: Scanner head
+        buffer.put((byte) 0);                 //Also Future
+
+        for (int i = 0; i < totalSize; i++)    //Rest: colour data
+        {
+            int colour = colours[i];
+            buffer.put((byte) ((colour >> 16) & 0xFF));
+            buffer.put((byte) ((colour >> 8) & 0xFF));
+            buffer.put((byte) (colour & 0xFF));
+        }
     }
 
     /**
@@ -122,13 +233,16 @@ public class IldaPalette {
      */
 
     public void setDefaultPalette() {
+        checkMutable();
         name = "Ilda64";
         companyName = "Ilda4P5";
         totalColors = 64;
         paletteNumber = 0;
         scannerHead = 0;
 
-        colours.clear();
+        Arrays.fill(colours, 0);
+        colourCount = 0;
+        quantiser = null;
         addColour(255, 0, 0);
         addColour(255, 16, 0);
         addColour(255, 32, 0);
@@ -195,4 +309,72 @@ public class IldaPalette {
         addColour(15, 32, 32);
 
     }
+
+    private static IldaPalette createDefaultPalette() {
+        IldaPalette palette = new IldaPalette();
+        palette.setDefaultPalette();
+        return palette.intern();
+    }
+
+    /**
+     * Identifies a palette in the registry. It refers to the colours of an immutable palette, not the palette itself,
+     * so unused palettes can still be garbage collected.
+     */
+
+    private static class Key {
+        final String name;
+        final String companyName;
+        final int totalColors;
+        final int paletteNumber;
+        final int scannerHead;
+        final int[] colours;
+        final int colourCount;
+        final int hash;
+
+        Key(IldaPalette palette) {
+            name = palette.name;
+            companyName = palette.companyName;
+            totalColors = palette.totalColors;
+            paletteNumber = palette.paletteNumber;
+            scannerHead = palette.scannerHead;
+            colours = palette.colours;
+            colourCount = palette.colourCount;
+
+            int h = colourCount;
+            for (int i = 0; i < colourCount; i++) {
+                h = 31 * h + colours[i];
+            }
+            h = 31 * h + (name == null ? 0 : name.hashCode());
+            h = 31 * h + (companyName == null ? 0 : companyName.hashCode());
+            hash = 31 * (31 * (31 * h + totalColors) + paletteNumber) + scannerHead;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            if (hash != other.hash || colourCount != other.colourCount || totalColors != other.totalColors
+                    || paletteNumber != other.paletteNumber || scannerHead != other.scannerHead) return false;
+            if (name == null ? other.name != null : !name.equals(other.name)) return false;
+            if (companyName == null ? other.companyName != null : !companyName.equals(other.companyName)) return false;
+            for (int i = 0; i < colourCount; i++) {
+                if (colours[i] != other.colours[i]) return false;
+            }
+            return true;
+        }
+    }
+
+    private static class Entry extends WeakReference<IldaPalette> {
+        final Key key;
+
+        Entry(IldaPalette palette, Key key) {
+            super(palette, collected);
+            this.key = key;
+        }
+    }
 }
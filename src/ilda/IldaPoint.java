@@ -95,7 +95,7 @@ public class IldaPoint {
      */
 
     public void setColour(IldaPalette palette) {
-        colour = palette.colours.get(palIndex);
+        colour = palette.getColour(palIndex & 0xFF);
     }
 
     /**
@@ -106,7 +106,7 @@ public class IldaPoint {
      */
 
     public void setColour(int paletteIndex, IldaPalette palette) {
-        colour = palette.colours.get(paletteIndex);
+        colour = palette.getColour(paletteIndex);
     }
 
     /**
@@ -129,26 +129,7 @@ public class IldaPoint {
      */
 
     public int getBestFittingPaletteColourIndex(IldaPalette palette) {
-        int index = 0;
-        double distance = 1000;
-        byte red = (byte) ((colour >> 16) & 0xFF);
-        byte green = (byte) ((colour >> 8) & 0xFF);
-        byte blue = (byte) (colour & 0xFF);
-
-        int i = 0;
-        for (int c : palette.colours) {
-            byte cred = (byte) ((c >> 16) & 0xFF);
-            byte cgreen = (byte) ((c >> 8) & 0xFF);
-            byte cblue = (byte) (c & 0xFF);
-            double d = Math.pow(cred - red, 2) + Math.pow(cgreen - green, 2) + Math.pow(cblue - blue, 2);
-            if (d < distance) {
-                distance = d;
-                index = i;
-            }
-            i++;
-
-        }
-        return index;
+        return palette.getQuantiser().getIndex(colour);
     }
 
     /**
@@ -0,0 +1,209 @@
+package ilda;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads an ilda file for real-time playback.
+ * A background thread decodes the upcoming frames into a bounded queue, so the thread that displays the frames
+ * doesn't have to wait for decoding. The look-ahead sets how many decoded frames are kept ready.
+ * <p>
+ * Decoding happens through an IldaStreamReader, so all formats and palette headers are supported and memory use
+ * only depends on the look-ahead.
+ * </p>
+ * <pre>
+ * IldaPrefetchReader reader = new IldaPrefetchReader(sketchPath() + "/show.ild", 32);
+ *
+ * void draw()
+ * {
+ *     IldaFrame frame = reader.pollFrame();
+ *     if (frame != null) current = frame;
+ *     //display current...
+ * }
+ * </pre>
+ * The decoding thread is created by a ThreadFactory. By default this is a daemon platform thread, on Java 21 or later
+ * virtual threads can be used by passing Thread.ofVirtual().factory().
+ */
+public class IldaPrefetchReader implements Closeable
+{
+    static final int DEFAULT_LOOK_AHEAD = 16;
+
+    //Marks the end of the file in the queue
+    private static final IldaFrame END = new IldaFrame();
+
+    private final IldaStreamReader reader;
+    private final ArrayBlockingQueue<IldaFrame> queue;
+    private final int lookAhead;
+    private final Thread worker;
+
+    private volatile boolean closed = false;
+    private volatile Throwable failure;
+    private boolean finished = false;
+
+    private final AtomicLong underruns = new AtomicLong();
+    private final AtomicLong framesDecoded = new AtomicLong();
+
+    public IldaPrefetchReader(String location) throws IOException
+    {
+        this(location, DEFAULT_LOOK_AHEAD);
+    }
+
+    public IldaPrefetchReader(String location, int lookAhead) throws IOException
+    {
+        this(new IldaStreamReader(location), lookAhead, null);
+    }
+
+    /**
+     * @param reader        the reader the frames are decoded from, it gets closed when this reader is closed
+     * @param lookAhead     how many decoded frames can be waiting in the queue, at least 1
+     * @param threadFactory creates the decoding thread, or null for a daemon platform thread
+     */
+
+    public IldaPrefetchReader(IldaStreamReader reader, int lookAhead, ThreadFactory threadFactory)
+    {
+        if (lookAhead < 1) throw new IllegalArgumentException("Look-ahead should be at least 1 frame");
+        this.reader = reader;
+        this.lookAhead = lookAhead;
+        queue = new ArrayBlockingQueue<IldaFrame>(lookAhead);
+
+        Runnable decoder = this::decode;
+        if (threadFactory == null)
+        {
+            worker = new Thread(decoder, "Ilda prefetch");
+            worker.setDaemon(true);
+        } else worker = threadFactory.newThread(decoder);
+        worker.start();
+    }
+
+    private void decode()
+    {
+        try {
+            while (!closed && reader.hasNext())
+            {
+                queue.put(reader.next());
+                framesDecoded.incrementAndGet();
+            }
+        } catch (InterruptedException e) {
+            return;
+        } catch (Throwable e) {
+            failure = e;
+        }
+        try {
+            if (!closed) queue.put(END);
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    /**
+     * Returns the next frame, waiting for it to be decoded if necessary
+     * @return the next frame, or null when the end of the file has been reached
+     * @throws InterruptedException when interrupted while waiting
+     */
+
+    public IldaFrame nextFrame() throws InterruptedException
+    {
+        if (finished) return null;
+        IldaFrame frame = queue.poll();
+        if (frame == null)
+        {
+            underruns.incrementAndGet();
+            frame = queue.take();
+        }
+        return unwrap(frame);
+    }
+
+    /**
+     * Returns the next frame if it is already decoded, without waiting.
+     * @return the next frame, or null if it isn't ready yet or if the end of the file has been reached (see isFinished())
+     */
+
+    public IldaFrame pollFrame()
+    {
+        if (finished) return null;
+        IldaFrame frame = queue.poll();
+        if (frame == null)
+        {
+            underruns.incrementAndGet();
+            return null;
+        }
+        return unwrap(frame);
+    }
+
+    private IldaFrame unwrap(IldaFrame frame)
+    {
+        if (frame != END) return frame;
+        finished = true;
+        if (failure != null) throw new RuntimeException("Error while decoding ilda file", failure);
+        return null;
+    }
+
+    /**
+     * @return true once all frames in the file have been returned
+     */
+
+    public boolean isFinished()
+    {
+        return finished;
+    }
+
+    /**
+     * @return amount of decoded frames currently waiting in the queue
+     */
+
+    public int getQueueDepth()
+    {
+        int depth = queue.size();
+        return queue.contains(END) ? depth - 1 : depth;
+    }
+
+    public int getLookAhead()
+    {
+        return lookAhead;
+    }
+
+    /**
+     * @return how many times a frame was requested while no decoded frame was ready
+     */
+
+    public long getUnderruns()
+    {
+        return underruns.get();
+    }
+
+    /**
+     * @return total amount of frames decoded by the background thread so far
+     */
+
+    public long getFramesDecoded()
+    {
+        return framesDecoded.get();
+    }
+
+    /**
+     * Stops the decoding thread, waits for it to finish and closes the underlying reader
+     */
+
+    @Override
+    public void close() throws IOException
+    {
+        closed = true;
+        finished = true;
+        worker.interrupt();
+        //The reader isn't thread-safe, so it can only be closed once the worker is done with it
+        boolean interrupted = false;
+        while (worker.isAlive())
+        {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        queue.clear();
+        reader.close();
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+}
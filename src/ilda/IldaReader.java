@@ -3,7 +3,15 @@ package ilda;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 
 
@@ -31,13 +39,24 @@ public class IldaReader  extends FileParser
 {
 
     //protected ArrayList<Integer> framePositions = new ArrayList<Integer>();
+    /**
+     * The last palette read from the file, or the palette set with setPalette(). It belongs to this reader, so it can
+     * be changed. Null if neither happened, see getPalette().
+     */
     public IldaPalette palette;
+    //The palette format 0 and 1 frames are painted with, interned so files with the same palette share it
+    private IldaPalette paintPalette;
+
+    protected boolean deduplicate = false;
+    protected int sharedFrames = 0;
+    protected boolean nativeCoordinates = false;
+    private HashMap<PointPayload, IldaFrame> loadedPayloads;
 
     public IldaReader(String location) throws FileNotFoundException
     {
         super(location);
 
-        if (b == null)
+        if (buffer == null)
         {
             throw new FileNotFoundException("Error: could not read file at " + location);
         }
@@ -49,6 +68,51 @@ public class IldaReader  extends FileParser
         this(file.getAbsolutePath());
     }
 
+    /**
+     * Reads ilda data from a stream, eg. an entry in a zip file. The stream is read completely but not closed.
+     * @param stream stream with the contents of an ilda file
+     * @throws IOException when the stream can't be read
+     */
+
+    public IldaReader(InputStream stream) throws IOException
+    {
+        super(stream);
+    }
+
+    /**
+     * Reads ilda data from a channel. The channel is read completely but not closed.
+     * @param channel channel with the contents of an ilda file
+     * @throws IOException when the channel can't be read
+     */
+
+    public IldaReader(ReadableByteChannel channel) throws IOException
+    {
+        super(channel);
+    }
+
+    /**
+     * Creates a reader for an ilda file on the classpath, eg. inside the jar of the sketch
+     * @param resource absolute name of the resource, eg. "shows/intro.ild"
+     * @return a reader with the contents of the resource
+     * @throws IOException when the resource doesn't exist or can't be read
+     */
+
+    public static IldaReader fromResource(String resource) throws IOException
+    {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        if (loader == null) loader = IldaReader.class.getClassLoader();
+        InputStream stream = loader.getResourceAsStream(resource);
+        if (stream == null)
+        {
+            throw new FileNotFoundException("Error: could not find resource " + resource);
+        }
+        try {
+            return new IldaReader(stream);
+        } finally {
+            stream.close();
+        }
+    }
+
     /**
      * Parse an ilda file from disk
      * Normally only this static method should be required to retrieve all IldaFrames from a file
@@ -62,22 +126,163 @@ public class IldaReader  extends FileParser
         return reader.getFramesFromBytes();
     }
 
+    /**
+     * Parse an ilda file from disk, optionally letting frames with identical points share them.
+     * Many shows repeat the same frame for holds and loops, deduplicating them reduces memory use by the repeat ratio.
+     * @param location    path to the ilda file
+     * @param deduplicate should frames with identical points share them?
+     * @return list of all loaded frames
+     * @see IldaFrame#isSharingPoints()
+     */
+
+    public static ArrayList<IldaFrame> readFile(String location, boolean deduplicate) throws FileNotFoundException
+    {
+        IldaReader reader = new IldaReader(location);
+        reader.setDeduplicate(deduplicate);
+        return reader.getFramesFromBytes();
+    }
+
+    /**
+     * Parse ilda data from a stream, eg. an entry in a zip file. The stream is not closed.
+     * @param stream stream with the contents of an ilda file
+     * @return list of all loaded frames
+     */
+
+    public static ArrayList<IldaFrame> readFile(InputStream stream) throws IOException
+    {
+        IldaReader reader = new IldaReader(stream);
+        return reader.getFramesFromBytes();
+    }
+
+    /**
+     * Parse an ilda file on the classpath
+     * @param resource absolute name of the resource
+     * @return list of all loaded frames
+     */
+
+    public static ArrayList<IldaFrame> readResource(String resource) throws IOException
+    {
+        return fromResource(resource).getFramesFromBytes();
+    }
+
+    /**
+     * Parse an ilda file from disk without decoding any points.
+     * The frames only contain their header information and a view on their part of the file. The points of a frame
+     * are decoded the first time they are accessed, and kept from then on.
+     * This is much faster and lighter if only the header fields (name, point count, ...) are required.
+     * @param location path to the ilda file
+     * @return list of all frames in the file
+     */
+
+    public static ArrayList<IldaFrame> readFileLazy(String location) throws FileNotFoundException
+    {
+        return readFileLazy(location, false);
+    }
+
+    /**
+     * Parse an ilda file from disk without decoding any points.
+     * @param location  path to the ilda file
+     * @param softCache if true, decoded points are only kept as long as memory allows and decoded again afterwards.
+     *                  Changes made to the points of a frame can get lost!
+     * @return list of all frames in the file
+     */
+
+    public static ArrayList<IldaFrame> readFileLazy(String location, boolean softCache) throws FileNotFoundException
+    {
+        IldaReader reader = new IldaReader(location);
+        return reader.getFramesLazy(softCache);
+    }
+
+    /**
+     * Parse an ilda file from disk using all available cores.
+     * The frame boundaries are found first from the point counts in the headers, after which the frames are decoded
+     * concurrently. The result is the same as readFile(), including the palettes applied to format 0 and 1 frames.
+     * @param location path to the ilda file
+     * @return list of all loaded frames
+     */
+
+    public static ArrayList<IldaFrame> readFileParallel(String location) throws FileNotFoundException
+    {
+        IldaReader reader = new IldaReader(location);
+        return reader.getFramesParallel(ForkJoinPool.commonPool());
+    }
+
 
 
     public void setPalette(IldaPalette palette) {
         this.palette = palette;
     }
 
+    /**
+     * Returns the last palette read from the file or set with setPalette(). If there is none, a copy of the default
+     * palette is created the first time this is called, so it can be changed like any palette read from a file.
+     * @return the palette of this reader
+     */
+
+    public IldaPalette getPalette() {
+        if (palette == null) palette = IldaPalette.getDefaultPalette().copy();
+        return palette;
+    }
+
+    /**
+     * If set, frames with identical point data share a single, immutable list of points.
+     * The point records are compared before they are decoded, so repeated frames are not decoded again either.
+     * A frame gets its own copy of the points when getPoints() is called on it.
+     * @param deduplicate should frames with identical points share them?
+     */
+
+    public void setDeduplicate(boolean deduplicate) {
+        this.deduplicate = deduplicate;
+    }
+
+    public boolean isDeduplicate() {
+        return deduplicate;
+    }
+
+    /**
+     * If set, frames store their coordinates as 16 bit integers like in the file instead of as floats,
+     * which uses less memory for large files. See PointBuffer.
+     * @param nativeCoordinates should frames keep the 16 bit coordinates of the file?
+     */
+
+    public void setNativeCoordinates(boolean nativeCoordinates) {
+        this.nativeCoordinates = nativeCoordinates;
+    }
+
+    public boolean isNativeCoordinates() {
+        return nativeCoordinates;
+    }
+
+    /**
+     * @return how many frames of the last read reused the points of an earlier frame
+     */
+
+    public int getSharedFrames() {
+        return sharedFrames;
+    }
+
+    /**
+     * Reads all frames in the file
+     * @return list of all loaded frames
+     */
+
+    public ArrayList<IldaFrame> getFrames() {
+        return getFramesFromBytes();
+    }
+
     private ArrayList<IldaFrame> getFramesFromBytes()
     {
-        reset();
         ArrayList<IldaFrame> theFrames = new ArrayList<IldaFrame>();
-        if (b == null) {
+        if (buffer == null) {
             //This should have been caught before
             return null;
         }
+        reset();
+        sharedFrames = 0;
+        paintPalette = null;
+        loadedPayloads = deduplicate ? new HashMap<PointPayload, IldaFrame>() : null;
 
-        if (b.length < 32) {
+        if (buffer.limit() < 32) {
             //There isn't even a complete header here!
             throw new RuntimeException("Error: file is not long enough to be a valid ILDA file!");
         }
@@ -92,127 +297,209 @@ public class IldaReader  extends FileParser
 
         reset();
 
-        loadIldaFrame( theFrames);
+        while (loadIldaFrame(theFrames))
+        {
+            //keep loading until there are no more headers
+        }
+        loadedPayloads = null;
         return theFrames;
 
 
     }
 
     /**
-     * Iterative method to load ilda frames, the new frames are appended to an ArrayList.
-     * @param f IldaFrame ArrayList where the new frame will be appended
+     * Creates frames that decode their points from this reader's buffer when they are first accessed
+     * @param softCache only keep decoded points softly reachable
+     * @return list of all frames
      */
 
-    private void loadIldaFrame(  ArrayList<IldaFrame> f)
+    public ArrayList<IldaFrame> getFramesLazy(boolean softCache)
     {
-        if (position >= b.length - 32)
+        IldaIndex index = IldaIndex.scan(buffer, palette);
+        ArrayList<IldaFrame> frames = new ArrayList<IldaFrame>(index.getFrameCount());
+        for (int i = 0; i < index.getFrameCount(); i++)
         {
-            return;        //no complete header
+            frames.add(index.lazyFrame(buffer, i, softCache));
         }
+        return frames;
+    }
 
+    /**
+     * Decodes all frames concurrently in a pool.
+     * A single pass over the headers finds where each frame starts, so every frame can be decoded independently
+     * into its place in a pre-sized list. Palettes are resolved from the index, so each frame still gets the last
+     * palette that preceded it in the file, or the palette of this reader (see setPalette()) if there is none.
+     * @param pool the pool that decodes the frames
+     * @return list of all loaded frames
+     */
 
-
-        //Bytes 0-3: ILDA
-        String hdr = parseString(4);
-        if (!hdr.equals("ILDA"))
+    public ArrayList<IldaFrame> getFramesParallel(ForkJoinPool pool)
+    {
+        IldaIndex index = IldaIndex.scan(buffer, palette);
+        int frameCount = index.getFrameCount();
+
+        //Palettes get decoded up front so the workers only read them
+        index.decodePalettes(buffer);
+        IldaPalette last = index.getLastPalette(buffer);
+        if (last != null) palette = last.copy();
+
+        //Only the first frame of every set of identical frames gets decoded
+        int[] originals = null;
+        sharedFrames = 0;
+        if (deduplicate)
         {
-            return;
+            originals = new int[frameCount];
+            HashMap<PointPayload, Integer> payloads = new HashMap<PointPayload, Integer>();
+            for (int i = 0; i < frameCount; i++)
+            {
+                PointPayload payload = index.getPayload(buffer, i);
+                Integer original = payloads.get(payload);
+                if (original == null)
+                {
+                    payloads.put(payload, i);
+                    originals[i] = i;
+                } else originals[i] = original;
+            }
         }
 
-        //Bytes 4-6: Reserved
-        skip(3);
-
-        //Byte 7: format code
-        int ildaVersion = parseByte();
-
-        //Bytes 8-15: frame name
-        String name = parseString(8);
-
-        //Bytes 16-23: company name
-        String company = parseString(8);
-
-        //Bytes 24-25: point count
-        int pointCount = parseShort();
-
-        //Bytes 26-27: frame number in frames or palette number in palettes
-        int frameNumber = parseShort();
-
-        //Bytes 28-29: total frames
-        skip(2);
-
-        //Byte 30: projector number
-        int scannerhead = parseByte() & 0xff;
-
-        //Byte 31: Reserved
-        skip(1);
+        IldaFrame[] frames = new IldaFrame[frameCount];
+        pool.invoke(new DecodeTask(index, buffer, frames, originals, nativeCoordinates, 0, frameCount));
 
+        if (originals != null)
+        {
+            for (int i = 0; i < frameCount; i++)
+            {
+                if (originals[i] != i)
+                {
+                    frames[i] = index.createSharedFrame(buffer, i, frames[originals[i]]);
+                    sharedFrames++;
+                }
+            }
+        }
+        return new ArrayList<IldaFrame>(Arrays.asList(frames));
+    }
 
+    private static class DecodeTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+        private static final int THRESHOLD = 16;
+
+        private final IldaIndex index;
+        private final ByteBuffer buffer;
+        private final IldaFrame[] frames;
+        private final int[] originals;
+        private final boolean nativeCoordinates;
+        private final int from;
+        private final int to;
+
+        DecodeTask(IldaIndex index, ByteBuffer buffer, IldaFrame[] frames, int[] originals, boolean nativeCoordinates, int from, int to)
+        {
+            this.index = index;
+            this.buffer = buffer;
+            this.frames = frames;
+            this.originals = originals;
+            this.nativeCoordinates = nativeCoordinates;
+            this.from = from;
+            this.to = to;
+        }
 
+        @Override
+        protected void compute()
+        {
+            if (to - from <= THRESHOLD)
+            {
+                for (int i = from; i < to; i++)
+                {
+                    if (originals == null || originals[i] == i) frames[i] = index.decodeFrame(buffer, i, nativeCoordinates);
+                }
+            } else
+            {
+                int mid = (from + to) >>> 1;
+                invokeAll(new DecodeTask(index, buffer, frames, originals, nativeCoordinates, from, mid),
+                        new DecodeTask(index, buffer, frames, originals, nativeCoordinates, mid, to));
+            }
+        }
+    }
 
-        if (ildaVersion == 2) {
+    /**
+     * Loads the next header and its data. New frames are appended to an ArrayList, palettes are stored in this reader.
+     * @param f IldaFrame ArrayList where the new frame will be appended
+     * @return true if there might be another header after this one
+     */
 
-            palette = new IldaPalette();
+    private boolean loadIldaFrame(  ArrayList<IldaFrame> f)
+    {
+        if (buffer.remaining() < IldaHeader.SIZE)
+        {
+            return false;        //no complete header
+        }
 
-            palette.name = name;
-            palette.companyName = company;
-            palette.totalColors = pointCount;
+        IldaHeader header = IldaHeader.read(buffer);
+        if (header == null)
+        {
+            return false;
+        }
 
-            //Byte 30: scanner head.
-            palette.scannerHead = scannerhead;
+        //A header without points marks the end of the file
+        int recordSize = header.recordSize();
+        if (header.pointCount == 0 || recordSize < 0)
+        {
+            return false;
+        }
 
+        //Don't read past the end of a truncated file
+        if (header.payloadSize() > buffer.remaining())
+        {
+            return false;
+        }
 
+        if (header.isPaletteHeader()) {
             // ILDA V2: Palette information
-
-            for (int i = 0; i < pointCount; i ++) {
-                palette.addColour(parseByte(), parseByte(), parseByte());
+            palette = header.createPalette();
+            for (int i = 0; i < header.pointCount; i++) {
+                IldaHeader.readColour(buffer, palette);
             }
-        } else {
-            IldaFrame frame = new IldaFrame();
-
-            frame.setIldaFormat(ildaVersion);
-            frame.setFrameName(name);
-            frame.setCompanyName(company);
-            frame.setFrameNumber(frameNumber);
-            frame.setPalette(ildaVersion == 0 || ildaVersion == 1);
-
-            boolean is3D = ildaVersion == 0 || ildaVersion == 4;
-
+            paintPalette = palette.intern();
+            return true;
+        }
 
-            for (int i = 0; i < pointCount; i++)
+        //Repeated frames are looked up before a frame is created, so they don't allocate room for their points
+        PointPayload payload = null;
+        if (loadedPayloads != null)
+        {
+            payload = new PointPayload(slice(buffer.position(), header.payloadSize()), header.ildaVersion,
+                    header.usesPalette() ? currentPalette() : null);
+            IldaFrame original = loadedPayloads.get(payload);
+            if (original != null)
             {
-                float x = parseShort();
-                float y = parseShort();
-                float z = 0;
-                if (is3D) z = parseShort();
-                boolean bl = false;
-                if ((parseByte() & 0x40) == 64) bl = true;
-                if (ildaVersion == 0 || ildaVersion == 1) {
-                    IldaPoint point = new IldaPoint(x * 0.00003051757f, y * -0.00003051757f, z * 0.00003051757f, parseByte() & 0xff, bl);
-                    frame.addPoint(point);
-                } else if (ildaVersion == 4 || ildaVersion == 5) {
-                    int blue = parseByte();
-                    int g = parseByte();
-                    int r = parseByte();
-                    IldaPoint point = new IldaPoint(x * 0.00003051757f, y * -0.00003051757f, z * 0.00003051757f, blue & 0xff, g & 0xff, r & 0xff, bl);
-                    frame.addPoint(point);
-                }
-
-
+                sharedFrames++;
+                skip(header.payloadSize());
+                f.add(header.createSharedFrame(original));
+                return true;
             }
+        }
 
-            if (frame.isPalette()) {
-                if (palette == null) {
-                    palette = new IldaPalette();
-                    palette.setDefaultPalette();
-                }
-
-                frame.palettePaint(palette);
-            }
-            f.add(frame);
+        IldaFrame frame = header.createFrame(nativeCoordinates);
+        PointBuffer points = frame.pointBuffer;
+        for (int i = 0; i < header.pointCount; i++)
+        {
+            header.readPoint(buffer, points);
+        }
 
-            loadIldaFrame( f);
+        if (frame.isPalette()) {
+            frame.palettePaint(currentPalette());
         }
+        if (payload != null) loadedPayloads.put(payload, frame);
+        f.add(frame);
+        return true;
     }
 
-
+    private IldaPalette currentPalette()
+    {
+        if (paintPalette == null) {
+            //The exposed palette is only copied from the default palette when getPalette() asks for it
+            paintPalette = palette != null ? palette : IldaPalette.getDefaultPalette();
+        }
+        return paintPalette;
+    }
 }
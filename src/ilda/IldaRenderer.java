@@ -3,9 +3,9 @@ package ilda;
 import processing.core.*;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 
-import static processing.core.PApplet.map;
 import static processing.core.PApplet.println;
 
 /**
@@ -65,6 +65,13 @@ public class IldaRenderer extends PGraphics {
 
     Optimiser optimiser;
     boolean optimise = true;
+    //Optimises points while they are drawn, when the settings allow it
+    protected StreamingOptimiser streamingOptimiser;
+    private boolean streaming = false;
+    protected OptimisationCache optimisationCache;
+    protected IldaStreamWriter recorder;
+    //True when the current frame has been written by the recorder and isn't kept anywhere
+    private boolean frameRecorded = false;
     private int matrixStackDepth;
 
     PApplet parent;
@@ -95,6 +102,7 @@ public class IldaRenderer extends PGraphics {
         }
 
         optimiser = new Optimiser(new OptimisationSettings());
+        streamingOptimiser = new StreamingOptimiser(optimiser.getSettings());
     }
 
     /**
@@ -110,6 +118,22 @@ public class IldaRenderer extends PGraphics {
         this.overwrite = overwrite;
     }
 
+    /**
+     * Writes every frame to a file as soon as endDraw() is called, instead of keeping all frames in memory.
+     * The frames are then not added to the frame list, so getFrames() stays empty, and the storage of a written frame
+     * is reused for the next one. Close the writer when done recording.
+     *
+     * @param recorder an IldaStreamWriter, or null to keep the frames in memory again
+     */
+
+    public void setRecorder(IldaStreamWriter recorder) {
+        this.recorder = recorder;
+    }
+
+    public IldaStreamWriter getRecorder() {
+        return recorder;
+    }
+
     /**
      * Returns the overwrite setting, whether the renderer keeps drawing on the same frame or if it creates a new frame each time beginDraw() is called.
      *
@@ -151,17 +175,23 @@ public class IldaRenderer extends PGraphics {
      */
 
     public void beginDraw() {
-        if (!overwrite || currentFrame == null) {
-
+        if (frameRecorded && !overwrite) {
+            //The previous frame has been written, so its storage can be used for the next one
+            currentFrame.pointBuffer().clear();
+            currentFrame.frameNumber = count;
+        } else if (!overwrite || currentFrame == null) {
 
-            currentFrame = new IldaFrame();
+            //Room for as many points as the previous frame, so the buffer doesn't have to grow while drawing
+            int capacity = currentFrame == null ? 64 : currentFrame.countPoints();
+            currentFrame = new IldaFrame(new PointBuffer(capacity));
             currentFrame.ildaVersion = 4;
             currentFrame.frameName = "P5Frame";
             currentFrame.companyName = "Ilda4P5";
             currentFrame.frameNumber = count;
         }
 
-
+        streaming = optimise && !isCaching() && StreamingOptimiser.canStream(optimiser.getSettings());
+        if (streaming) streamingOptimiser.begin(currentFrame.pointBuffer());
     }
 
     /**
@@ -169,13 +199,66 @@ public class IldaRenderer extends PGraphics {
      */
 
     public void endDraw() {
-        if (optimise) optimiser.optimiseSegment(currentFrame.points);
-        currentFrame.pointCount = currentFrame.points.size();
-        if (!overwrite) theFrames.add(currentFrame);
+        if (streaming) {
+            streamingOptimiser.end();
+            streaming = false;
+        } else if (optimise && isCaching()) {
+            optimisationCache.optimiseSegment(optimiser, currentFrame.pointBuffer());
+        } else if (optimise) optimiser.optimiseSegment(currentFrame.pointBuffer());
+        currentFrame.pointCount = currentFrame.countPoints();
+        if (recorder != null) {
+            try {
+                recorder.addFrame(currentFrame);
+                frameRecorded = true;
+            } catch (IOException e) {
+                throw new RuntimeException("Error when recording frame " + count, e);
+            }
+        } else if (!overwrite) {
+            theFrames.add(currentFrame);
+            frameRecorded = false;
+        }
         count++;
         resetMatrix();
     }
 
+    /**
+     * Reuses the optimised points of earlier frames with the same points and settings, instead of optimising every
+     * frame in endDraw(). Frames are then not optimised while they are drawn. The cache is not used in overwrite mode,
+     * where the frame keeps growing.
+     *
+     * @param optimisationCache a cache, can be shared between renderers, or null to optimise every frame again
+     */
+
+    public void setOptimisationCache(OptimisationCache optimisationCache) {
+        this.optimisationCache = optimisationCache;
+    }
+
+    public OptimisationCache getOptimisationCache() {
+        return optimisationCache;
+    }
+
+    private boolean isCaching() {
+        return optimisationCache != null && !overwrite;
+    }
+
+    /**
+     * Adds a point to the current frame, optimised right away if the frame is optimised while drawing
+     */
+
+    protected void addPoint(IldaPoint point) {
+        if (streaming) streamingOptimiser.add(point);
+        else currentFrame.pointBuffer().add(point);
+    }
+
+    /**
+     * Adds a point to the current frame without creating an IldaPoint
+     */
+
+    protected void addPoint(float x, float y, float z, int colour, boolean blanked) {
+        if (streaming) streamingOptimiser.add(x, y, z, colour, blanked, 0);
+        else currentFrame.pointBuffer().add(x, y, z, colour, blanked, 0);
+    }
+
     public void beginShape(int kind)
     {
         shape = kind;
@@ -213,7 +296,7 @@ public class IldaRenderer extends PGraphics {
 
     public void endContour()
     {
-        if (closedShape) currentFrame.points.add(firstPoint);
+        if (closedShape) addPoint(firstPoint);
         //PApplet.println("End contour");
     }
 
@@ -322,22 +405,20 @@ public class IldaRenderer extends PGraphics {
 
         //ilda.parent.println(shape, vertexCount);
 
-        PVector pos = new PVector(x, y, z);
-
-        matrix.mult(pos, pos);
-
+        //Same as matrix.mult(), without creating a PVector for every vertex
+        float mx = matrix.m00 * x + matrix.m01 * y + matrix.m02 * z + matrix.m03;
+        float my = matrix.m10 * x + matrix.m11 * y + matrix.m12 * z + matrix.m13;
+        float mz = matrix.m20 * x + matrix.m21 * y + matrix.m22 * z + matrix.m23;
 
-        float xpos = 2 * ((pos.x) * invWidth - 0.5f);
-        float ypos = 2 * ((pos.y) * invHeight - 0.5f);
-        float zpos = 2 * ((pos.z) * invDepth - 0.5f);
-        int red = (int) (strokeR * 255);
-        int green = (int) (strokeG * 255);
-        int blue = (int) (strokeB * 255);
+        float xpos = 2 * (mx * invWidth - 0.5f);
+        float ypos = 2 * (my * invHeight - 0.5f);
+        float zpos = 2 * (mz * invDepth - 0.5f);
+        int colour = strokeColour();
 
         //when drawing points, add a blanked point before every point
         if ((shape == POINT) || shape == POINTS) {
-            currentPoint = new IldaPoint(xpos, ypos, zpos, red, green, blue, true);
-            currentFrame.points.add(currentPoint);
+            setPoint(currentPoint, xpos, ypos, zpos, colour, true);
+            addPoint(currentPoint);
             shouldBlank = false;
             vertexCount = 0;
         }
@@ -348,7 +429,7 @@ public class IldaRenderer extends PGraphics {
         }
 
         if (closedShape && vertexCount == 1) {
-            firstPoint = new IldaPoint(xpos, ypos, zpos, red, green, blue, false);
+            setPoint(firstPoint, xpos, ypos, zpos, colour, false);
             if(renderingText) closedShape = false;
         }
 
@@ -356,33 +437,53 @@ public class IldaRenderer extends PGraphics {
 
 
         //ilda.parent.println(x, y, z, 2*(x*invWidth-0.5f), -2*(y*invHeight-0.5f), z* (invHeight + invWidth) * 0.5f-1);
-        currentPoint = new IldaPoint(xpos, ypos, zpos, red, green, blue, shouldBlank);
+        setPoint(currentPoint, xpos, ypos, zpos, colour, shouldBlank);
         //PApplet.println(xpos, ypos, zpos, red, green, blue, shouldBlank, " ----- shape: ", shape);
 
         if(renderingText)
         {
-            PVector currPos = new PVector(x, y, z);
-            //PApplet.println(PVector.dist(currPos, prevVector), textDetail * textSize, currPos, prevVector, PVector.dist(currPos, prevVector) > textDetail*textSize);
-            float dist= PVector.dist(currPos, prevVector);
+            float dx = x - prevVector.x;
+            float dy = y - prevVector.y;
+            float dz = z - prevVector.z;
+            float dist = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
             if ( dist > textDetail*textSize && dist != 0)
             {
-                currentFrame.points.add(currentPoint);  //blargh should probably look at angle as well
-                prevVector = currPos;
+                addPoint(currentPoint);  //blargh should probably look at angle as well
+                prevVector.set(x, y, z);
             }
             //else currentFrame.points.add(currentPoint);
 
 
         }
 
-        else currentFrame.points.add(currentPoint);
+        else addPoint(currentPoint);
 
         if (shouldBlank) shouldBlank = false;
 
 
     }
 
+    /**
+     * @return the stroke colour as the RGB value of an IldaPoint, see IldaPoint.setColour(int, int, int)
+     */
+
+    private int strokeColour() {
+        int red = Math.max(0, Math.min(255, (int) (strokeR * 255)));
+        int green = Math.max(0, Math.min(255, (int) (strokeG * 255)));
+        int blue = Math.max(0, Math.min(255, (int) (strokeB * 255)));
+        return (red << 16) + (green << 8) + blue;
+    }
+
+    private static void setPoint(IldaPoint point, float x, float y, float z, int colour, boolean blanked) {
+        point.x = x;
+        point.y = y;
+        point.z = z;
+        point.colour = colour;
+        point.blanked = blanked;
+    }
+
     public void endShape() {
-        if (closedShape) currentFrame.points.add(firstPoint);
+        if (closedShape) addPoint(firstPoint);
         //ilda.parent.println(closedShape);
         //currentFrame.points.add(currentPoint);
     }
@@ -390,21 +491,17 @@ public class IldaRenderer extends PGraphics {
     protected void ellipseImpl(float x, float y, float w, float h) {
         float m = (w + h) * ellipseDetail;
         boolean first = true;
+        int colour = strokeColour();
 
         for (float i = 0; i < m + 1 + circleCorrection; i++) {
             float xpos = (float) (2 * (((x + w/2 * (Math.sin(TWO_PI * i / m) +1)+ matrix.m03) * invWidth )-0.5f));
             float ypos = (float) (2 * (((y + h/2 * (Math.cos(TWO_PI * i / m) +1)+ matrix.m13) * invHeight )-0.5f));
             float zpos = 0;
-            int red = (int) (strokeR * 255);
-            int green = (int) (strokeG * 255);
-            int blue = (int) (strokeB * 255);
             if (first) {
-                IldaPoint p = new IldaPoint(xpos, ypos, zpos, red, green, blue, true);
-                currentFrame.points.add(p);
+                addPoint(xpos, ypos, zpos, colour, true);
                 first = false;
             }
-            IldaPoint p = new IldaPoint(xpos, ypos, zpos, red, green, blue, false);
-            currentFrame.points.add(p);
+            addPoint(xpos, ypos, zpos, colour, false);
         }
     }
 
@@ -492,13 +589,12 @@ public class IldaRenderer extends PGraphics {
 
     public void drawIldaFrame(IldaFrame frame, int x, int y, int w, int h)
     {
-        for (IldaPoint p : frame.points)
+        PointBuffer source = frame.pointsAsBuffer();
+        PointBuffer target = currentFrame.pointBuffer();
+        for (int i = 0; i < source.size(); i++)
         {
-            IldaPoint newPoint = new IldaPoint(p.clone());
-            PVector position = newPoint.getPosition();
-            position.x = map(position.x, 0, width, x, x+w);
-            position.y = map(position.y, 0,height,y,y+w);
-            currentFrame.addPoint(newPoint);
+            if (streaming) streamingOptimiser.add(source, i);
+            else target.add(source, i);
         }
     }
 
@@ -567,7 +663,8 @@ public class IldaRenderer extends PGraphics {
      */
 
     public void clearFrame() {
-        currentFrame.points.clear();
+        currentFrame.pointBuffer().clear();
+        if (streaming) streamingOptimiser.begin(currentFrame.pointBuffer());
     }
 
     public void clearAllFrames()
@@ -593,6 +690,7 @@ public class IldaRenderer extends PGraphics {
 
     public void setOptimisationSettings(OptimisationSettings settings) {
         this.optimiser.setSettings(settings);
+        this.streamingOptimiser.setSettings(settings);
     }
 
     public OptimisationSettings getOptimisationSettings() {
@@ -0,0 +1,251 @@
+package ilda;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Reads an ilda file frame by frame without loading the whole file in memory.
+ * Headers and points are read incrementally from a channel into a small buffer which gets reused for the entire file,
+ * so memory use does not depend on the size of the file. The first frame is available as soon as its bytes are read.
+ * <p>
+ * Use this instead of IldaReader.readFile() for large files that get played from front to back:
+ * </p>
+ * <pre>
+ * IldaStreamReader reader = new IldaStreamReader(sketchPath() + "/show.ild");
+ * while (reader.hasNext())
+ * {
+ *     IldaFrame frame = reader.next();
+ *     //...
+ * }
+ * reader.close();
+ * </pre>
+ * Palette headers (format 2) are applied to all format 0 and 1 frames that follow them, just like in IldaReader.
+ * Reading stops at the first header without points, or at the end of the channel.
+ */
+public class IldaStreamReader implements Iterator<IldaFrame>, Closeable
+{
+    static final int DEFAULT_BUFFER_SIZE = 65536;
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer;
+    private boolean endOfChannel = false;
+    private boolean finished = false;
+    private boolean firstHeader = true;
+    private IldaFrame next;
+    private IldaPalette palette;
+    //The palette format 0 and 1 frames are painted with, interned so files with the same palette share it
+    private IldaPalette paintPalette;
+    //When set, every palette that gets read is added to it, so IldzWriter.convert keeps palettes that directly follow each other
+    ArrayList<IldaPalette> palettesRead;
+
+    public IldaStreamReader(String location) throws IOException
+    {
+        this(FileChannel.open(Paths.get(location), StandardOpenOption.READ));
+    }
+
+    public IldaStreamReader(File file) throws IOException
+    {
+        this(file.getAbsolutePath());
+    }
+
+    public IldaStreamReader(ReadableByteChannel channel)
+    {
+        this(channel, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param channel    the channel the ilda data gets read from, it gets closed when this reader is closed
+     * @param bufferSize size in bytes of the reusable read buffer, at least 32
+     */
+
+    public IldaStreamReader(ReadableByteChannel channel, int bufferSize)
+    {
+        if (bufferSize < IldaHeader.SIZE)
+        {
+            throw new IllegalArgumentException("Buffer size should be at least " + IldaHeader.SIZE + " bytes");
+        }
+        this.channel = channel;
+        buffer = ByteBuffer.allocate(bufferSize);
+        buffer.flip();
+    }
+
+    /**
+     * Opens an ilda file as a sequential stream of frames. Closing the stream closes the file.
+     * @param location path to the ilda file
+     * @return a lazily populated stream of all frames in the file
+     * @throws IOException when the file can't be opened
+     */
+
+    public static Stream<IldaFrame> streamFile(String location) throws IOException
+    {
+        return new IldaStreamReader(location).stream();
+    }
+
+    /**
+     * @return a sequential stream over the remaining frames, closing the stream closes this reader
+     */
+
+    public Stream<IldaFrame> stream()
+    {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(() -> {
+                    try {
+                        close();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        if (next == null && !finished)
+        {
+            try {
+                next = readFrame();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public IldaFrame next()
+    {
+        if (!hasNext()) throw new NoSuchElementException();
+        IldaFrame frame = next;
+        next = null;
+        return frame;
+    }
+
+    /**
+     * @return the palette that was last read from the file, or null if none was read so far
+     */
+
+    public IldaPalette getPalette()
+    {
+        return palette;
+    }
+
+    /**
+     * Sets the palette used to colour format 0 and 1 frames until the file specifies its own palette
+     * @param palette the palette
+     */
+
+    public void setPalette(IldaPalette palette)
+    {
+        this.palette = palette;
+        paintPalette = palette;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        finished = true;
+        next = null;
+        channel.close();
+    }
+
+    /**
+     * Makes sure at least a certain amount of bytes can be read from the buffer, reading from the channel if necessary
+     * @param bytes amount of bytes that need to be available
+     * @return false if the channel ended before enough bytes were available
+     */
+
+    private boolean fill(int bytes) throws IOException
+    {
+        if (buffer.remaining() >= bytes) return true;
+        buffer.compact();
+        while (buffer.position() < bytes && !endOfChannel)
+        {
+            if (channel.read(buffer) < 0) endOfChannel = true;
+        }
+        buffer.flip();
+        return buffer.remaining() >= bytes;
+    }
+
+    private IldaFrame readFrame() throws IOException
+    {
+        while (fill(IldaHeader.SIZE))
+        {
+            IldaHeader header = IldaHeader.read(buffer);
+            if (header == null)
+            {
+                if (firstHeader)
+                {
+                    throw new RuntimeException("Error: invalid ILDA file, expected ILDA header");
+                }
+                break;
+            }
+            firstHeader = false;
+
+            int recordSize = header.recordSize();
+            if (recordSize < 0 || header.pointCount == 0)
+            {
+                break;
+            }
+
+            if (header.isPaletteHeader())
+            {
+                palette = header.createPalette();
+                int remaining = header.pointCount;
+                while (remaining > 0)
+                {
+                    if (!fill(recordSize)) return finish();
+                    int n = Math.min(remaining, buffer.remaining() / recordSize);
+                    for (int i = 0; i < n; i++)
+                    {
+                        IldaHeader.readColour(buffer, palette);
+                    }
+                    remaining -= n;
+                }
+                paintPalette = palette.intern();
+                if (palettesRead != null) palettesRead.add(palette);
+                continue;
+            }
+
+            IldaFrame frame = header.createFrame();
+            PointBuffer points = frame.pointBuffer;
+            int remaining = header.pointCount;
+            while (remaining > 0)
+            {
+                if (!fill(recordSize)) return finish();
+                int n = Math.min(remaining, buffer.remaining() / recordSize);
+                for (int i = 0; i < n; i++)
+                {
+                    header.readPoint(buffer, points);
+                }
+                remaining -= n;
+            }
+
+            if (frame.isPalette())
+            {
+                frame.palettePaint(paintPalette != null ? paintPalette : IldaPalette.getDefaultPalette());
+            }
+            return frame;
+        }
+        return finish();
+    }
+
+    private IldaFrame finish()
+    {
+        finished = true;
+        return null;
+    }
+}
@@ -0,0 +1,289 @@
+package ilda;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Writes frames to an ilda file as soon as they are produced, for example to record hours of live output.
+ * Only the frame that is being written is kept in memory (and the position of every frame in the file).
+ * <p>
+ * The total amount of frames is not known while recording, so headers are written with a total of 0.
+ * When the writer is closed, the terminating "LAST ONE" header is appended and the total frames field of every
+ * header is patched in place. This requires a FileChannel: when writing to another kind of OutputStream the total
+ * frames field stays 0.
+ * </p>
+ * <p>
+ * A header stores the frame number and the total frames in 16 bits, so a file holds at most MAX_FRAMES frames, about
+ * 18 minutes at 60 frames per second. A writer that was created with a location continues in a new file when a file
+ * is full: recording.ild is followed by recording-2.ild, recording-3.ild and so on, and the last palette written
+ * is repeated at the start of every file. Writers on a channel or stream throw an IOException instead.
+ * </p>
+ * Example:
+ * <pre>
+ * IldaStreamWriter writer = new IldaStreamWriter(sketchPath("recording.ild"));
+ * renderer.setRecorder(writer);
+ * ...
+ * writer.close();
+ * </pre>
+ */
+public class IldaStreamWriter implements Closeable
+{
+    /**
+     * Amount of frames that fit in one ilda file, as the frame numbers in the headers are 16 bit
+     */
+    public static final int MAX_FRAMES = 65535;
+
+    private WritableByteChannel channel;
+    private FileChannel fileChannel;
+    private final int ildaVersion;
+    //Null when writing to a channel or stream, which can't continue in another file
+    private final String location;
+    private IldaPalette palette;
+    private int fileCount = 1;
+    private int totalFrames = 0;
+
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(65536);
+    private long position = 0;
+    private long[] frameOffsets = new long[256];
+    private int frameCount = 0;
+    private boolean closed = false;
+
+    /**
+     * Creates or overwrites an ilda file in format 4
+     * @param location path of the file
+     */
+
+    public IldaStreamWriter(String location) throws IOException
+    {
+        this(location, 4);
+    }
+
+    /**
+     * @param location    path of the file, an existing file is overwritten
+     * @param ildaVersion ilda format of the frames: 0, 1, 4 or 5
+     */
+
+    public IldaStreamWriter(String location, int ildaVersion) throws IOException
+    {
+        this(open(location), location, ildaVersion);
+    }
+
+    /**
+     * @param channel     channel to write to, starting at its current position. It gets closed when this writer is closed.
+     * @param ildaVersion ilda format of the frames: 0, 1, 4 or 5
+     */
+
+    public IldaStreamWriter(FileChannel channel, int ildaVersion) throws IOException
+    {
+        this(channel, channel, null, ildaVersion);
+    }
+
+    /**
+     * Writes to a stream. The total frames field can only be patched if the stream is a FileOutputStream.
+     * @param stream      stream to write to, it gets closed when this writer is closed
+     * @param ildaVersion ilda format of the frames: 0, 1, 4 or 5
+     */
+
+    public IldaStreamWriter(OutputStream stream, int ildaVersion) throws IOException
+    {
+        this(stream instanceof FileOutputStream ? ((FileOutputStream) stream).getChannel() : Channels.newChannel(stream),
+                stream instanceof FileOutputStream ? ((FileOutputStream) stream).getChannel() : null, null, ildaVersion);
+    }
+
+    private IldaStreamWriter(FileChannel channel, String location, int ildaVersion) throws IOException
+    {
+        this(channel, channel, location, ildaVersion);
+    }
+
+    private IldaStreamWriter(WritableByteChannel channel, FileChannel fileChannel, String location, int ildaVersion) throws IOException
+    {
+        if (ildaVersion != 0 && ildaVersion != 1 && ildaVersion != 4 && ildaVersion != 5)
+        {
+            channel.close();
+            throw new IllegalArgumentException("Unsupported ILDA format " + ildaVersion);
+        }
+        this.channel = channel;
+        this.fileChannel = fileChannel;
+        this.location = location;
+        this.ildaVersion = ildaVersion;
+        if (fileChannel != null) position = fileChannel.position();
+    }
+
+    /**
+     * Writes a palette with a format 2 header. Frames written after it use this palette.
+     * @param palette the palette
+     */
+
+    public void writePalette(IldaPalette palette) throws IOException
+    {
+        checkOpen();
+        ByteBuffer out = prepare(palette.getByteSize());
+        palette.paletteToBytes(out);
+        write(out);
+        //Kept for the next file, as it was at this moment
+        this.palette = palette.copy();
+    }
+
+    /**
+     * Writes a frame to the file. The frame can be changed or reused afterwards.
+     * When the file already has MAX_FRAMES frames, the frame is written to a new file, see the class description.
+     * @param frame the frame
+     * @throws IOException when the frame can't be written, or the file is full and this writer has no location
+     */
+
+    public void addFrame(IldaFrame frame) throws IOException
+    {
+        checkOpen();
+        if (frameCount == MAX_FRAMES) nextFile();
+        ByteBuffer out = prepare(IldaWriter.getFrameSize(frame, ildaVersion));
+
+        if (frameCount == frameOffsets.length) frameOffsets = Arrays.copyOf(frameOffsets, frameCount * 2);
+        frameOffsets[frameCount] = position;
+        frameCount++;
+        totalFrames++;
+
+        IldaWriter.encodeFrame(out, frame, ildaVersion, frameCount, 0);
+        write(out);
+    }
+
+    /**
+     * @return amount of frames written so far, in all files
+     */
+
+    public int getFrameCount()
+    {
+        return totalFrames;
+    }
+
+    /**
+     * @return amount of files written so far, more than one if the frames didn't fit in one file
+     */
+
+    public int getFileCount()
+    {
+        return fileCount;
+    }
+
+    public int getIldaVersion()
+    {
+        return ildaVersion;
+    }
+
+    /**
+     * Finishes the current file and continues in the next one
+     */
+
+    private void nextFile() throws IOException
+    {
+        if (location == null)
+        {
+            throw new IOException("An ilda file can't hold more than " + MAX_FRAMES + " frames");
+        }
+        //Stays closed if this file can't be finished or the next one can't be opened
+        closed = true;
+        finish();
+        FileChannel next = open(partLocation(location, fileCount + 1));
+        closed = false;
+        fileCount++;
+        channel = next;
+        fileChannel = next;
+        position = 0;
+        frameCount = 0;
+        if (palette != null) writePalette(palette);
+    }
+
+    /**
+     * @return the location of a following file: the number is inserted before the extension
+     */
+
+    private static String partLocation(String location, int part)
+    {
+        int dot = location.lastIndexOf('.');
+        int separator = Math.max(location.lastIndexOf('/'), location.lastIndexOf(File.separatorChar));
+        if (dot <= separator + 1) return location + "-" + part;
+        return location.substring(0, dot) + "-" + part + location.substring(dot);
+    }
+
+    private static FileChannel open(String location) throws IOException
+    {
+        return FileChannel.open(Paths.get(location), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+    }
+
+    private ByteBuffer prepare(int size)
+    {
+        if (buffer.capacity() < size)
+        {
+            buffer = ByteBuffer.allocateDirect(Math.max(size, buffer.capacity() * 2));
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    private void write(ByteBuffer out) throws IOException
+    {
+        out.flip();
+        position += out.remaining();
+        while (out.hasRemaining())
+        {
+            channel.write(out);
+        }
+    }
+
+    private void checkOpen() throws IOException
+    {
+        if (closed) throw new IOException("This IldaStreamWriter is closed");
+    }
+
+    /**
+     * Appends the "LAST ONE" header, patches the total frames field of every frame header and closes the file
+     */
+
+    @Override
+    public void close() throws IOException
+    {
+        if (closed) return;
+        closed = true;
+        finish();
+    }
+
+    /**
+     * Appends the "LAST ONE" header, patches the total frames field and closes the current file
+     */
+
+    private void finish() throws IOException
+    {
+        try {
+            ByteBuffer out = prepare(IldaHeader.SIZE);
+            IldaWriter.encodeLastHeader(out, ildaVersion);
+            write(out);
+
+            if (fileChannel != null && frameCount > 0)
+            {
+                ByteBuffer total = ByteBuffer.allocate(2);
+                total.putShort(0, (short) frameCount);
+                for (int i = 0; i < frameCount; i++)
+                {
+                    total.rewind();
+                    long offset = frameOffsets[i] + 28;
+                    while (total.hasRemaining())
+                    {
+                        offset += fileChannel.write(total, offset);
+                    }
+                }
+            }
+        } finally {
+            channel.close();
+        }
+    }
+}
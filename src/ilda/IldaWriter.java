@@ -4,8 +4,14 @@ package ilda;
 import processing.core.PApplet;
 
 import java.io.File;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 
 /**
@@ -15,10 +21,15 @@ import java.util.ArrayList;
 public class IldaWriter {
     ArrayList<IldaFrame> frames;
 
+    //Largest direct buffer allocated when encoding in parallel
+    private static final int MAX_CHUNK = 1 << 30;
+
 
 
     /**
      * Writes a valid ilda file to a certain location with specified format.
+     * Format 0 and 1 points are written with the palette index they already have, no recolourisation happens. Frames
+     * with true colours need writeFile(location, frames, palette, ildaVersion, true) to get the right palette indices.
      * @param location The path to where the ilda file should be exported
      * @param frames All frames that should be included in the ilda file
      * @param ildaVersion ilda format:
@@ -35,32 +46,37 @@ public class IldaWriter {
 
         IldaFrame.fixHeaders(frames);
 
-        byte[] b = getBytesFromFrames(frames, ildaVersion);
+        ByteBuffer b = getBufferFromFrames(frames.toArray(new IldaFrame[frames.size()]), null, ildaVersion, true);
         if (b == null) return;
 
         writeFile(location, b);
 
     }
 
+    /**
+     * See writeFile(String, ArrayList, int), format 0 and 1 points keep the palette index they already have
+     */
+
     public static void writeFile(String location, IldaFrame[] frames, int ildaVersion) {
         if (frames == null) return;
 
         IldaFrame.fixHeaders(frames);
 
-        byte[] b = getBytesFromFrames(frames, ildaVersion);
+        ByteBuffer b = getBufferFromFrames(frames, null, ildaVersion, true);
         if (b == null) return;
 
         writeFile(location, b);
 
     }
 
-    private static void writeFile(String location, byte[] b)
+    private static void writeFile(String location, ByteBuffer b)
     {
-        try {
-            File file = new File(location);
-
-            Files.write(file.toPath(), b);
-
+        try (FileChannel channel = FileChannel.open(new File(location).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (b.hasRemaining())
+            {
+                channel.write(b);
+            }
         } catch (Exception e) {
             PApplet.println("Error when exporting ilda file: ", e);
             e.printStackTrace();
@@ -82,19 +98,43 @@ public class IldaWriter {
         if (frames == null) return;
         IldaFrame.fixHeaders(frames);
 
-        byte[] b = getBytesFromFrames(frames, palette, ildaVersion);
+        ByteBuffer b = getBufferFromFrames(frames.toArray(new IldaFrame[frames.size()]), palette, ildaVersion, true);
         if (b == null) return;
 
         writeFile(location, b);
 
     }
 
+    /**
+     * Writes frames with true colours to a palette format (0 or 1) file. If remapColours is set, the palette index of
+     * every point is first set to the palette colour closest to the point's colour. The frames are remapped in
+     * parallel, see PaletteQuantiser.
+     * @param location The path to where the ilda file should be exported
+     * @param frames All frames that should be included in the ilda file
+     * @param palette The palette that is written in front of the frames and whose colours the points get. If null, no
+     *                palette is written and the points get the colours of the default palette, which readers use for
+     *                files without a palette.
+     * @param ildaVersion ilda format, should be 0 or 1
+     * @param remapColours should the palette indices be recalculated from the colours of the points?
+     */
+
+    public static void writeFile(String location, ArrayList<IldaFrame> frames, IldaPalette palette, int ildaVersion, boolean remapColours)
+    {
+        if (frames == null) return;
+        if (remapColours)
+        {
+            IldaPalette colours = palette != null ? palette : IldaPalette.getDefaultPalette();
+            colours.getQuantiser().remap(frames, ForkJoinPool.commonPool());
+        }
+        writeFile(location, frames, palette, ildaVersion);
+    }
+
     public static void writeFile(String location, IldaFrame[] frames, IldaPalette palette, int ildaVersion)
     {
         if (frames == null) return;
         IldaFrame.fixHeaders(frames);
 
-        byte[] b = getBytesFromFrames(frames, palette, ildaVersion);
+        ByteBuffer b = getBufferFromFrames(frames, palette, ildaVersion, true);
         if (b == null) return;
 
         writeFile(location, b);
@@ -118,6 +158,167 @@ public class IldaWriter {
         writeFile(location, frames, 4);
     }
 
+    /**
+     * Writes an ilda file, encoding the frames concurrently in the common pool.
+     * See writeFileParallel(String, ArrayList, IldaPalette, int, ForkJoinPool)
+     * @param location    The path to where the ilda file should be exported
+     * @param frames      All frames that should be included in the ilda file
+     * @param ildaVersion ilda format: 0, 1, 4 or 5
+     */
+
+    public static void writeFileParallel(String location, ArrayList<IldaFrame> frames, int ildaVersion)
+    {
+        writeFileParallel(location, frames, null, ildaVersion, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Writes an ilda file, encoding the frames concurrently.
+     * Every frame is encoded independently into its own part of the output, as its size and its frame number are
+     * known up front. The parts are then written to the file with gathering writes.
+     * @param location    The path to where the ilda file should be exported
+     * @param frames      All frames that should be included in the ilda file
+     * @param palette     An IldaPalette that will be appended in front of the ilda file with a format 2 header, can be null
+     * @param ildaVersion ilda format: 0, 1, 4 or 5
+     * @param pool        the pool that encodes the frames
+     */
+
+    public static void writeFileParallel(String location, ArrayList<IldaFrame> frames, IldaPalette palette, int ildaVersion, ForkJoinPool pool)
+    {
+        if (frames == null) return;
+        IldaFrame.fixHeaders(frames);
+
+        ByteBuffer[] buffers = getBuffersFromFrames(frames.toArray(new IldaFrame[frames.size()]), palette, ildaVersion, pool);
+        if (buffers == null) return;
+
+        try (FileChannel channel = FileChannel.open(new File(location).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            //A gathering write can stop early, keep writing from the first buffer with remaining bytes
+            int first = 0;
+            while (first < buffers.length)
+            {
+                channel.write(buffers, first, buffers.length - first);
+                while (first < buffers.length && !buffers[first].hasRemaining()) first++;
+            }
+        } catch (Exception e) {
+            PApplet.println("Error when exporting ilda file: ", e);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Encodes frames concurrently. The result is one buffer for the palette (if any), one buffer per frame and one for
+     * the closing header, which together form the ilda file. The buffers are slices of large direct buffers.
+     * @param frames      the frames, with fixed headers
+     * @param palette     palette that gets inserted as a format 2 header before the frames, can be null
+     * @param ildaVersion the ilda format version, can be 0, 1, 4 or 5
+     * @param pool        the pool that encodes the frames
+     * @return the parts of the ilda file in order, or null if there are no frames or the format is invalid
+     */
+
+    public static ByteBuffer[] getBuffersFromFrames(IldaFrame[] frames, IldaPalette palette, int ildaVersion, ForkJoinPool pool)
+    {
+        if (frames.length == 0 || !isValidVersion(ildaVersion)) return null;
+
+        int paletteSize = palette == null ? 0 : palette.getByteSize();
+        int offset = paletteSize > 0 ? 1 : 0;
+        ByteBuffer[] buffers = new ByteBuffer[frames.length + offset + 1];
+
+        //Divide the output in chunks of at most MAX_CHUNK bytes, each part gets its own slice of a chunk
+        int[] sizes = new int[buffers.length];
+        if (offset == 1) sizes[0] = paletteSize;
+        for (int i = 0; i < frames.length; i++)
+        {
+            sizes[i + offset] = getFrameSize(frames[i], ildaVersion);
+        }
+        sizes[buffers.length - 1] = IldaHeader.SIZE;
+
+        int chunkStart = 0;
+        long chunkSize = 0;
+        for (int i = 0; i <= buffers.length; i++)
+        {
+            if (i == buffers.length || (chunkSize + sizes[i] > MAX_CHUNK && i > chunkStart))
+            {
+                ByteBuffer chunk = ByteBuffer.allocateDirect((int) chunkSize);
+                for (int j = chunkStart; j < i; j++)
+                {
+                    chunk.limit(chunk.position() + sizes[j]);
+                    buffers[j] = chunk.slice();
+                    chunk.position(chunk.limit());
+                }
+                chunkStart = i;
+                chunkSize = 0;
+            }
+            if (i < buffers.length) chunkSize += sizes[i];
+        }
+
+        if (offset == 1) palette.paletteToBytes(buffers[0]);
+        pool.invoke(new EncodeTask(frames, buffers, offset, ildaVersion, 0, frames.length));
+        encodeLastHeader(buffers[buffers.length - 1], ildaVersion);
+
+        for (ByteBuffer buffer : buffers)
+        {
+            buffer.flip();
+        }
+        return buffers;
+    }
+
+    private static class EncodeTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+        private static final int THRESHOLD = 16;
+
+        private final IldaFrame[] frames;
+        private final ByteBuffer[] buffers;
+        private final int offset;
+        private final int ildaVersion;
+        private final int from;
+        private final int to;
+
+        EncodeTask(IldaFrame[] frames, ByteBuffer[] buffers, int offset, int ildaVersion, int from, int to)
+        {
+            this.frames = frames;
+            this.buffers = buffers;
+            this.offset = offset;
+            this.ildaVersion = ildaVersion;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (to - from <= THRESHOLD)
+            {
+                for (int i = from; i < to; i++)
+                {
+                    encodeFrame(buffers[i + offset], frames[i], ildaVersion, i + 1, frames.length);
+                }
+            } else
+            {
+                int mid = (from + to) >>> 1;
+                invokeAll(new EncodeTask(frames, buffers, offset, ildaVersion, from, mid),
+                        new EncodeTask(frames, buffers, offset, ildaVersion, mid, to));
+            }
+        }
+    }
+
+    /**
+     * Looks for frames with identical points, such as holds and loops, and reports how much they take up.
+     * Frames that share their points (see IldaReader.setDeduplicate()) are recognised without comparing their points.
+     * @param frames the frames that would be written
+     * @return a report with the amount of repeated frames, runs of consecutive repeats and the bytes they use
+     */
+
+    public static FrameRepeatReport findRepeats(List<IldaFrame> frames)
+    {
+        return FrameRepeatReport.analyse(frames);
+    }
+
+    public static FrameRepeatReport findRepeats(IldaFrame[] frames)
+    {
+        return FrameRepeatReport.analyse(Arrays.asList(frames));
+    }
+
     public static byte[] getBytesFromFrames(ArrayList<IldaFrame> frames) {
         return getBytesFromFrames(frames.toArray(new IldaFrame[frames.size()]), 4);
     }
@@ -145,12 +346,8 @@ public class IldaWriter {
 
     public static byte[] getBytesFromFrames(IldaFrame[] frames, IldaPalette palette, int ildaVersion)
     {
-        byte[] pbytes = palette.paletteToBytes();
-        byte[] fbytes = getBytesFromFrames(frames, ildaVersion);
-        byte[] cbytes = new byte[pbytes.length + fbytes.length];
-        System.arraycopy(pbytes, 0, cbytes, 0, pbytes.length);
-        System.arraycopy(fbytes, 0, cbytes, pbytes.length, fbytes.length);
-        return cbytes;
+        ByteBuffer buffer = getBufferFromFrames(frames, palette, ildaVersion, false);
+        return buffer == null ? null : buffer.array();
     }
 
     /**
@@ -161,168 +358,184 @@ public class IldaWriter {
      */
 
     public static byte[] getBytesFromFrames(IldaFrame[] frames, int ildaVersion) {
-        ArrayList<Byte> theBytes = new ArrayList<Byte>();
-        int frameNum = 0;
-
-        if (frames.length == 0) return null;
-
-        for (IldaFrame frame : frames) {
-            theBytes.add((byte) 'I');
-            theBytes.add((byte) 'L');
-            theBytes.add((byte) 'D');
-            theBytes.add((byte) 'A');
-            theBytes.add((byte) 0);
-            theBytes.add((byte) 0);
-            theBytes.add((byte) 0);
-
-            if (ildaVersion == 0 || ildaVersion == 1 || ildaVersion == 2 || ildaVersion == 4 || ildaVersion == 5)
-                theBytes.add((byte) ildaVersion);
-            else {
-
-                return null;
-            }
-
-            for (int i = 0; i < 8; i++)    //Bytes 9-16: Name
-            {
-                char letter;
-                if (frame.frameName.length() < i + 1) letter = ' ';
-                else letter = frame.frameName.charAt(i);
-                theBytes.add((byte) letter);
-            }
-
-            if (frame.companyName.length() == 0)   //Bytes 17-24: Company Name
-            {
-                theBytes.add((byte) 'I');     //If empty: call it "Ilda4P5"
-                theBytes.add((byte) 'l');
-                theBytes.add((byte) 'd');
-                theBytes.add((byte) 'a');
-                theBytes.add((byte) '4');
-                theBytes.add((byte) 'P');
-                theBytes.add((byte) '5');
-                theBytes.add((byte) ' ');
-            } else {
-                for (int i = 0; i < 8; i++) {
-                    char letter;
-                    if (frame.companyName.length() < i + 1) letter = ' ';
-                    else letter = frame.companyName.charAt(i);
-                    theBytes.add((byte) letter);
-                }
-            }
-
-            //Bytes 25-26: Total point count
-            theBytes.add((byte) ((frame.points.size() >> 8) & 0xff));    //This better be correct
-            theBytes.add((byte) (frame.points.size() & 0xff));
-
-
-            //Bytes 27-28: Frame number (automatically increment each frame)
-            theBytes.add((byte) ((++frameNum >> 8) & 0xff));    //This better be correct
-            theBytes.add((byte) (frameNum & 0xff));
-
-
-            //Bytes 29-30: Number of frames
-            theBytes.add((byte) ((frames.length >> 8) & 0xff));    //This better be correct
-            theBytes.add((byte) (frames.length & 0xff));
+        ByteBuffer buffer = getBufferFromFrames(frames, null, ildaVersion, false);
+        return buffer == null ? null : buffer.array();
+    }
 
-            theBytes.add((byte) (frame.scannerHead));    //Byte 31 is scanner head
-            theBytes.add((byte) (0));                    //Byte 32 is future
+    /**
+     * Encodes frames into a ByteBuffer of exactly the size of the ilda file.
+     * The headers and points are written straight into the buffer, a direct buffer can be written to a file or
+     * socket without being copied.
+     *
+     * @param frames      the frames
+     * @param palette     palette that gets inserted as a format 2 header before the frames, can be null
+     * @param ildaVersion the ilda format version, can be 0, 1, 4 or 5
+     * @param direct      allocate a direct buffer instead of a buffer backed by an array
+     * @return a buffer positioned at 0 with the contents of the ilda file, or null if there are no frames or the format is invalid
+     */
 
+    public static ByteBuffer getBufferFromFrames(IldaFrame[] frames, IldaPalette palette, int ildaVersion, boolean direct)
+    {
+        if (frames.length == 0 || !isValidVersion(ildaVersion)) return null;
 
+        long size = getFileSize(frames, ildaVersion);
+        if (palette != null) size += palette.getByteSize();
+        if (size > Integer.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("An ilda file of " + size + " bytes is too large to encode in memory");
+        }
 
-            for (IldaPoint point : frame.points) {
-                short posx = (short) ((point.x < -1 ? -1 : point.x > 1 ? 1 : point.x) * 32767);
-                theBytes.add((byte) ((posx >> 8) & 0xff));
-                theBytes.add((byte) (posx & 0xff));
+        ByteBuffer buffer = direct ? ByteBuffer.allocateDirect((int) size) : ByteBuffer.allocate((int) size);
+        if (palette != null) palette.paletteToBytes(buffer);
+        for (int i = 0; i < frames.length; i++)
+        {
+            encodeFrame(buffer, frames[i], ildaVersion, i + 1, frames.length);
+        }
+        encodeLastHeader(buffer, ildaVersion);
+        buffer.flip();
+        return buffer;
+    }
 
-                short posy = (short) ((point.y < -1 ? -1 : point.y > 1 ? 1 : point.y) * -32767);
-                theBytes.add((byte) ((posy >> 8) & 0xff));
-                theBytes.add((byte) (posy & 0xff));
+    /**
+     * @param frames      the frames
+     * @param ildaVersion the ilda format version
+     * @return amount of bytes of an ilda file with these frames, without palette
+     */
 
-                if (ildaVersion == 0 || ildaVersion == 4) //a 3D frame
-                {
+    public static long getFileSize(IldaFrame[] frames, int ildaVersion)
+    {
+        long size = IldaHeader.SIZE;
+        for (IldaFrame frame : frames)
+        {
+            size += getFrameSize(frame, ildaVersion);
+        }
+        return size;
+    }
 
-                    int posz = (int) ((point.z < -1 ? -1 : point.z > 1 ? 1 : point.z) * 32767);
-                    theBytes.add((byte) ((posz >> 8) & 0xff));
-                    theBytes.add((byte) (posz & 0xff));
-                }
-                //ilda.parent.println(posx + " " + posy + " " + point.blanked);
+    static int getFrameSize(IldaFrame frame, int ildaVersion)
+    {
+        return IldaHeader.SIZE + frame.countPoints() * getRecordSize(ildaVersion);
+    }
 
-                if (point.blanked) {
-                    theBytes.add((byte) 0x40);
-                } else {
-                    theBytes.add((byte) 0);
-                }
+    static boolean isValidVersion(int ildaVersion)
+    {
+        return ildaVersion == 0 || ildaVersion == 1 || ildaVersion == 2 || ildaVersion == 4 || ildaVersion == 5;
+    }
 
-                if (ildaVersion == 0 || ildaVersion == 1) theBytes.add((point.palIndex));
-                else {
-                    int c = point.colour;
+    /**
+     * Size of a point record as written by this class: X and Y, Z for 3D formats, a status byte and
+     * either a palette index or three colour bytes
+     */
 
-                    if (point.blanked) c = 0;  //some programs only use colour information to determine blanking
+    static int getRecordSize(int ildaVersion)
+    {
+        boolean is3D = ildaVersion == 0 || ildaVersion == 4;
+        boolean usesPalette = ildaVersion == 0 || ildaVersion == 1;
+        return 4 + (is3D ? 2 : 0) + 1 + (usesPalette ? 1 : 3);
+    }
 
-                    int red = (c >> 16) & 0xFF;  // Faster way of getting red(argb)
-                    int green = ((c >> 8) & 0xFF);   // Faster way of getting green(argb)
-                    int blue = (c & 0xFF);          // Faster way of getting blue(argb)
+    /**
+     * Writes the header and points of a frame at the current position of a buffer
+     * @param buffer      big-endian buffer with at least getFrameSize() bytes remaining
+     * @param frame       the frame
+     * @param ildaVersion the ilda format version
+     * @param frameNumber number of the frame written in the header
+     * @param totalFrames total amount of frames written in the header
+     */
 
+    static void encodeFrame(ByteBuffer buffer, IldaFrame frame, int ildaVersion, int frameNumber, int totalFrames)
+    {
+        encodeFrame(buffer, frame, ildaVersion, frameNumber, totalFrames, false);
+    }
 
-                    theBytes.add((byte) (blue));
-                    theBytes.add((byte) (green));
-                    theBytes.add((byte) (red));
-                }
+    /**
+     * Writes the header and points of a frame at the current position of a buffer
+     * @param keepBlankedColours write the colour of blanked points in formats 4 and 5 instead of black, used when a
+     *                           frame that was read from a file is written back unchanged
+     */
 
+    static void encodeFrame(ByteBuffer buffer, IldaFrame frame, int ildaVersion, int frameNumber, int totalFrames,
+                            boolean keepBlankedColours)
+    {
+        PointBuffer points = frame.pointsAsBuffer();
+        int pointCount = points.size();
+
+        buffer.put((byte) 'I');
+        buffer.put((byte) 'L');
+        buffer.put((byte) 'D');
+        buffer.put((byte) 'A');
+        buffer.put((byte) 0);
+        buffer.put((byte) 0);
+        buffer.put((byte) 0);
+        buffer.put((byte) ildaVersion);
+
+        putString(buffer, frame.frameName);                         //Bytes 9-16: Name
+        if (frame.companyName == null || frame.companyName.length() == 0) putString(buffer, "Ilda4P5"); //Bytes 17-24: Company Name
+        else putString(buffer, frame.companyName);
+
+        buffer.putShort((short) pointCount);        //Bytes 25-26: Total point count
+        buffer.putShort((short) frameNumber);       //Bytes 27-28: Frame number
+        buffer.putShort((short) totalFrames);       //Bytes 29-30: Number of frames
+        buffer.put((byte) frame.scannerHead);       //Byte 31 is scanner head
+        buffer.put((byte) 0);                       //Byte 32 is future
+
+        boolean is3D = ildaVersion == 0 || ildaVersion == 4;
+        boolean usesPalette = ildaVersion == 0 || ildaVersion == 1;
+        for (int i = 0; i < pointCount; i++) {
+            float x = points.getX(i);
+            float y = points.getY(i);
+            float z = points.getZ(i);
+            boolean blanked = points.isBlanked(i);
+
+            buffer.putShort(PointBuffer.toNative(x));
+            buffer.putShort(PointBuffer.toNative(-y));
+            if (is3D) buffer.putShort(PointBuffer.toNative(z));
+
+            buffer.put(blanked ? (byte) 0x40 : (byte) 0);
+
+            if (usesPalette) buffer.put(points.palIndex[i]);
+            else {
+                int c = points.getColour(i);
+                if (blanked && !keepBlankedColours) c = 0;  //some programs only use colour information to determine blanking
 
+                buffer.put((byte) (c & 0xFF));              //blue
+                buffer.put((byte) ((c >> 8) & 0xFF));       //green
+                buffer.put((byte) ((c >> 16) & 0xFF));      //red
             }
-
-
         }
+    }
 
-        //File should always end with a header
-
-        theBytes.add((byte) 'I');
-        theBytes.add((byte) 'L');
-        theBytes.add((byte) 'D');
-        theBytes.add((byte) 'A');
-        theBytes.add((byte) 0);
-        theBytes.add((byte) 0);
-        theBytes.add((byte) 0);
-        theBytes.add((byte) ildaVersion);
-
-        theBytes.add((byte) 'L');
-        theBytes.add((byte) 'A');
-        theBytes.add((byte) 'S');
-        theBytes.add((byte) 'T');
-        theBytes.add((byte) ' ');
-        theBytes.add((byte) 'O');
-        theBytes.add((byte) 'N');
-        theBytes.add((byte) 'E');
-
-        theBytes.add((byte) 'I');
-        theBytes.add((byte) 'l');
-        theBytes.add((byte) 'd');
-        theBytes.add((byte) 'a');
-        theBytes.add((byte) '4');
-        theBytes.add((byte) 'P');
-        theBytes.add((byte) '5');
-        theBytes.add((byte) ' ');
-
-        theBytes.add((byte) 0);
-        theBytes.add((byte) 0);
-
-        theBytes.add((byte) 0);
-        theBytes.add((byte) 0);
-
-        theBytes.add((byte) 0);
-        theBytes.add((byte) 0);
-
-        theBytes.add((byte) 0);
-
-        theBytes.add((byte) 0);
-
+    /**
+     * Writes the header without points that ends an ilda file
+     */
 
-        byte[] bt = new byte[theBytes.size()]; //Ugh! Get your shit fixed, Java!
-        for (int i = 0; i < theBytes.size(); i++) {
-            bt[i] = theBytes.get(i);
+    static void encodeLastHeader(ByteBuffer buffer, int ildaVersion)
+    {
+        buffer.put((byte) 'I');
+        buffer.put((byte) 'L');
+        buffer.put((byte) 'D');
+        buffer.put((byte) 'A');
+        buffer.put((byte) 0);
+        buffer.put((byte) 0);
+        buffer.put((byte) 0);
+        buffer.put((byte) ildaVersion);
+        putString(buffer, "LAST ONE");
+        putString(buffer, "Ilda4P5");
+        for (int i = 0; i < 8; i++)
+        {
+            buffer.put((byte) 0);
         }
+    }
 
+    /**
+     * Writes exactly eight characters, padded with spaces
+     */
 
-        return bt;
+    static void putString(ByteBuffer buffer, String s)
+    {
+        for (int i = 0; i < 8; i++)
+        {
+            buffer.put(s == null || i >= s.length() ? (byte) ' ' : (byte) s.charAt(i));
+        }
     }
 }
@@ -0,0 +1,206 @@
+package ilda;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes and decodes frames in the uncompressed payload of an .ildz block.
+ * <p>
+ * Coordinates are stored as 16 bit ilda values, the same precision as in an ilda file, so converting between
+ * .ild and .ildz is lossless. Each coordinate is stored as the difference with the previous point as a zigzag varint,
+ * which makes consecutive points on a path take one or two bytes per axis. A flag byte per point holds the blanking
+ * bit and whether the colour or palette index changed since the previous point, only changes are stored.
+ * </p>
+ * Frame layout: format code, flags (bit 0: palette), frame name and company name (length-prefixed UTF-8), frame number,
+ * total frames, scanner head, point count (varint), points.
+ */
+class IldzCodec
+{
+    private static final int BLANKED = 1;
+    private static final int COLOUR_CHANGED = 2;
+    private static final int INDEX_CHANGED = 4;
+
+    static void encodeFrame(IldaFrame frame, DataOutputStream out) throws IOException
+    {
+        out.writeByte(frame.ildaVersion);
+        out.writeByte(frame.palette ? 1 : 0);
+        writeString(out, frame.frameName);
+        writeString(out, frame.companyName);
+        out.writeShort(frame.frameNumber);
+        out.writeShort(frame.totalFrames);
+        out.writeByte(frame.scannerHead);
+
+        PointBuffer points = frame.pointsAsBuffer();
+        writeVarint(out, points.size());
+
+        int px = 0, py = 0, pz = 0;
+        int colour = 0;
+        int palIndex = 0;
+        for (int i = 0; i < points.size(); i++)
+        {
+            int x = PointBuffer.toNative(points.getX(i));
+            int y = PointBuffer.toNative(-points.getY(i));
+            int z = PointBuffer.toNative(points.getZ(i));
+            writeVarint(out, zigzag(x - px));
+            writeVarint(out, zigzag(y - py));
+            writeVarint(out, zigzag(z - pz));
+            px = x;
+            py = y;
+            pz = z;
+
+            int flags = points.isBlanked(i) ? BLANKED : 0;
+            int c = points.getColour(i) & 0xffffff;
+            int index = points.getPalIndex(i);
+            if (c != colour) flags |= COLOUR_CHANGED;
+            if (index != palIndex) flags |= INDEX_CHANGED;
+            out.writeByte(flags);
+            if (c != colour)
+            {
+                out.writeByte(c >> 16);
+                out.writeByte(c >> 8);
+                out.writeByte(c);
+                colour = c;
+            }
+            if (index != palIndex)
+            {
+                out.writeByte(index);
+                palIndex = index;
+            }
+        }
+    }
+
+    static IldaFrame decodeFrame(ByteBuffer in)
+    {
+        IldaFrame frame = new IldaFrame(new PointBuffer());
+        frame.setIldaFormat(in.get() & 0xff);
+        frame.palette = (in.get() & 1) == 1;
+        frame.frameName = readString(in);
+        frame.companyName = readString(in);
+        frame.frameNumber = in.getShort() & 0xffff;
+        frame.totalFrames = in.getShort() & 0xffff;
+        frame.scannerHead = in.get() & 0xff;
+
+        int count = readVarint(in);
+        frame.pointCount = count;
+        PointBuffer points = frame.pointBuffer;
+        points.ensureCapacity(count);
+
+        int x = 0, y = 0, z = 0;
+        int colour = 0;
+        int palIndex = 0;
+        for (int i = 0; i < count; i++)
+        {
+            x += unzigzag(readVarint(in));
+            y += unzigzag(readVarint(in));
+            z += unzigzag(readVarint(in));
+            int flags = in.get();
+            if ((flags & COLOUR_CHANGED) != 0)
+            {
+                colour = ((in.get() & 0xff) << 16) | ((in.get() & 0xff) << 8) | (in.get() & 0xff);
+            }
+            if ((flags & INDEX_CHANGED) != 0)
+            {
+                palIndex = in.get() & 0xff;
+            }
+            points.add(x * PointBuffer.NATIVE_SCALE, y * -PointBuffer.NATIVE_SCALE, z * PointBuffer.NATIVE_SCALE, colour, (flags & BLANKED) != 0, palIndex);
+        }
+        return frame;
+    }
+
+    /**
+     * Palette layout in the index: palette name and company name, palette number, scanner head, colour count and
+     * three bytes per colour
+     */
+
+    static void encodePalette(IldaPalette palette, DataOutputStream out) throws IOException
+    {
+        writeString(out, palette.name);
+        writeString(out, palette.companyName);
+        out.writeShort(palette.paletteNumber);
+        out.writeByte(palette.scannerHead);
+        out.writeShort(palette.getColourCount());
+        for (int i = 0; i < palette.getColourCount(); i++)
+        {
+            int c = palette.getColour(i);
+            out.writeByte(c >> 16);
+            out.writeByte(c >> 8);
+            out.writeByte(c);
+        }
+    }
+
+    static IldaPalette decodePalette(ByteBuffer in)
+    {
+        IldaPalette palette = new IldaPalette();
+        palette.name = readString(in);
+        palette.companyName = readString(in);
+        palette.paletteNumber = in.getShort() & 0xffff;
+        palette.scannerHead = in.get() & 0xff;
+        int count = in.getShort() & 0xffff;
+        palette.totalColors = count;
+        for (int i = 0; i < count; i++)
+        {
+            palette.addColour(in.get(), in.get(), in.get());
+        }
+        return palette.intern();
+    }
+
+    private static int zigzag(int value)
+    {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value)
+    {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException
+    {
+        while ((value & ~0x7f) != 0)
+        {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarint(ByteBuffer in)
+    {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do
+        {
+            b = in.get();
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException
+    {
+        byte[] bytes = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in)
+    {
+        int length = in.getShort() & 0xffff;
+        String s;
+        if (in.hasArray())
+        {
+            s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        } else
+        {
+            byte[] bytes = new byte[length];
+            in.duplicate().get(bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+        }
+        in.position(in.position() + length);
+        return s;
+    }
+}
@@ -0,0 +1,287 @@
+package ilda;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads frames from an .ildz archive written by IldzWriter.
+ * Opening an archive only reads its index. Reading a frame decompresses the block it is in, the last decompressed
+ * block is kept so reading consecutive frames doesn't decompress the same block again.
+ * The frames are regular IldaFrames, identical to the ones that were written. Archives written before palettes were
+ * stored (format version 1) can still be read, they have no palettes.
+ * A reader shares its decompressor and the cached block between calls, so it should not be used by multiple threads
+ * at once.
+ */
+public class IldzReader implements Closeable
+{
+    static final byte[] MAGIC = {'I', 'L', 'D', 'Z'};
+    static final int FORMAT_VERSION = 2;
+    static final int HEADER_SIZE = 8;
+    private static final int FOOTER_SIZE = 12;
+
+    private final FileChannel channel;
+    private final Inflater inflater = new Inflater();
+
+    private int frameCount;
+    private int blockCount;
+    private long[] blockOffsets;
+    private int[] blockCompressedSizes;
+    private int[] blockSizes;
+    private int[] blockFirstFrames;
+    private int[] frameOffsets;
+    private int paletteCount;
+    private IldaPalette[] palettes;
+    private int[] paletteFirstFrames;
+
+    private int cachedBlock = -1;
+    private ByteBuffer cachedBlockData;
+
+    public IldzReader(String location) throws IOException
+    {
+        channel = FileChannel.open(Paths.get(location), StandardOpenOption.READ);
+        try {
+            readIndex(location);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads all frames in an .ildz archive
+     * @param location path of the archive
+     * @return list of all frames
+     */
+
+    public static ArrayList<IldaFrame> readFile(String location) throws IOException
+    {
+        try (IldzReader reader = new IldzReader(location))
+        {
+            return reader.getFrames();
+        }
+    }
+
+    /**
+     * Converts an .ildz archive to an ilda file, one frame at a time. Every frame is written in the format and with
+     * the frame number and total frames it was read with, and the palettes are written in front of the frames they
+     * preceded, so an ilda file converted to .ildz and back is unchanged, apart from a header without points that
+     * ends the file if it had none and the last point bits in the status bytes, which readers don't keep.
+     * @param ildzLocation path of the archive
+     * @param ildLocation  path of the ilda file
+     */
+
+    public static void convert(String ildzLocation, String ildLocation) throws IOException
+    {
+        try (IldzReader reader = new IldzReader(ildzLocation);
+             FileChannel out = FileChannel.open(Paths.get(ildLocation), StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+        {
+            ByteBuffer buffer = ByteBuffer.allocate(65536);
+            int palette = 0;
+            int ildaVersion = 4;
+            for (int i = 0; i <= reader.frameCount; i++)
+            {
+                while (palette < reader.paletteCount && reader.paletteFirstFrames[palette] <= i)
+                {
+                    IldaPalette p = reader.palettes[palette++];
+                    buffer = prepare(buffer, p.getByteSize());
+                    p.paletteToBytes(buffer);
+                    write(out, buffer);
+                }
+                if (i == reader.frameCount) break;
+
+                IldaFrame frame = reader.getFrame(i);
+                ildaVersion = frame.getIldaVersion();
+                buffer = prepare(buffer, IldaWriter.getFrameSize(frame, ildaVersion));
+                IldaWriter.encodeFrame(buffer, frame, ildaVersion, frame.frameNumber, frame.totalFrames, true);
+                write(out, buffer);
+            }
+            buffer = prepare(buffer, IldaHeader.SIZE);
+            IldaWriter.encodeLastHeader(buffer, ildaVersion);
+            write(out, buffer);
+        }
+    }
+
+    private static ByteBuffer prepare(ByteBuffer buffer, int size)
+    {
+        if (buffer.capacity() < size) return ByteBuffer.allocate(size);
+        buffer.clear();
+        return buffer;
+    }
+
+    private static void write(FileChannel out, ByteBuffer buffer) throws IOException
+    {
+        buffer.flip();
+        while (buffer.hasRemaining())
+        {
+            out.write(buffer);
+        }
+    }
+
+    private void readIndex(String location) throws IOException
+    {
+        long size = channel.size();
+        if (size < HEADER_SIZE + FOOTER_SIZE) throw new IOException("Error: " + location + " is not a valid ildz file");
+
+        ByteBuffer header = read(0, HEADER_SIZE);
+        ByteBuffer footer = read(size - FOOTER_SIZE, FOOTER_SIZE);
+        for (int i = 0; i < 4; i++)
+        {
+            if (header.get(i) != MAGIC[i] || footer.get(8 + i) != MAGIC[i])
+            {
+                throw new IOException("Error: " + location + " is not a valid ildz file");
+            }
+        }
+        int version = header.get(4);
+        if (version < 1 || version > FORMAT_VERSION)
+        {
+            throw new IOException("Error: unsupported ildz version " + header.get(4));
+        }
+
+        long indexOffset = footer.getLong(0);
+        ByteBuffer index = read(indexOffset, (int) (size - FOOTER_SIZE - indexOffset));
+        frameCount = index.getInt();
+        blockCount = index.getInt();
+        blockOffsets = new long[blockCount];
+        blockCompressedSizes = new int[blockCount];
+        blockSizes = new int[blockCount];
+        blockFirstFrames = new int[blockCount];
+        for (int i = 0; i < blockCount; i++)
+        {
+            blockOffsets[i] = index.getLong();
+            blockCompressedSizes[i] = index.getInt();
+            blockSizes[i] = index.getInt();
+            blockFirstFrames[i] = index.getInt();
+        }
+        frameOffsets = new int[frameCount];
+        for (int i = 0; i < frameCount; i++)
+        {
+            frameOffsets[i] = index.getInt();
+        }
+        paletteCount = version < 2 ? 0 : index.getInt();
+        palettes = new IldaPalette[paletteCount];
+        paletteFirstFrames = new int[paletteCount];
+        for (int i = 0; i < paletteCount; i++)
+        {
+            paletteFirstFrames[i] = index.getInt();
+            palettes[i] = IldzCodec.decodePalette(index);
+        }
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer, position + buffer.position()) < 0) throw new EOFException();
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    public int getFrameCount()
+    {
+        return frameCount;
+    }
+
+    /**
+     * Reads a single frame, only its block gets decompressed
+     * @param frame index of the frame
+     * @return the frame
+     * @throws IOException when the archive can't be read or is corrupt
+     */
+
+    public IldaFrame getFrame(int frame) throws IOException
+    {
+        if (frame < 0 || frame >= frameCount)
+        {
+            throw new IndexOutOfBoundsException("Frame " + frame + " does not exist, there are " + frameCount + " frames");
+        }
+        ByteBuffer data = getBlock(blockOf(frame)).duplicate();
+        data.position(frameOffsets[frame]);
+        return IldzCodec.decodeFrame(data);
+    }
+
+    /**
+     * @param frame index of the frame
+     * @return the palette the frame was stored with, the last palette added before it, or null if there is none
+     */
+
+    public IldaPalette getPalette(int frame)
+    {
+        IldaPalette palette = null;
+        for (int i = 0; i < paletteCount && paletteFirstFrames[i] <= frame; i++)
+        {
+            palette = palettes[i];
+        }
+        return palette;
+    }
+
+    /**
+     * @return all frames in the archive
+     */
+
+    public ArrayList<IldaFrame> getFrames() throws IOException
+    {
+        ArrayList<IldaFrame> frames = new ArrayList<IldaFrame>(frameCount);
+        for (int i = 0; i < frameCount; i++)
+        {
+            frames.add(getFrame(i));
+        }
+        return frames;
+    }
+
+    private int blockOf(int frame)
+    {
+        int low = 0;
+        int high = blockCount - 1;
+        while (low < high)
+        {
+            int mid = (low + high + 1) >>> 1;
+            if (blockFirstFrames[mid] <= frame) low = mid;
+            else high = mid - 1;
+        }
+        return low;
+    }
+
+    private ByteBuffer getBlock(int block) throws IOException
+    {
+        if (block == cachedBlock) return cachedBlockData;
+
+        ByteBuffer compressed = read(blockOffsets[block], blockCompressedSizes[block]);
+        byte[] raw = new byte[blockSizes[block]];
+        inflater.reset();
+        inflater.setInput(compressed.array());
+        try {
+            int size = 0;
+            while (size < raw.length && !inflater.finished())
+            {
+                int n = inflater.inflate(raw, size, raw.length - size);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                size += n;
+            }
+            if (size != raw.length) throw new IOException("Error: corrupt block " + block + " in ildz file");
+        } catch (DataFormatException e) {
+            throw new IOException("Error: corrupt block " + block + " in ildz file", e);
+        }
+
+        cachedBlock = block;
+        cachedBlockData = ByteBuffer.wrap(raw);
+        return cachedBlockData;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        inflater.end();
+        channel.close();
+    }
+}
@@ -0,0 +1,237 @@
+package ilda;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Writes frames to an .ildz archive: a compressed ilda container with a frame index.
+ * <p>
+ * Frames are grouped in blocks that are compressed independently with Deflate, so a single frame can be read back
+ * by decompressing only its own block. Inside a block, coordinates are delta-encoded between consecutive points
+ * (see IldzCodec). The index with the position of every block and frame is written at the end of the file.
+ * </p>
+ * File layout:
+ * <ul>
+ * <li>"ILDZ", format version (1 byte), 3 reserved bytes</li>
+ * <li>compressed blocks</li>
+ * <li>index: frame count, block count, per block its offset, compressed size, uncompressed size and first frame,
+ * per frame its offset in the uncompressed block, palette count, per palette the first frame it applies to and the
+ * palette (see IldzCodec)</li>
+ * <li>footer: offset of the index (8 bytes) and "ILDZ"</li>
+ * </ul>
+ * Frames are written as soon as a block is full, so an archive can be written without keeping all frames in memory.
+ * Palettes are kept in the index in the order they were added, so an ilda file converted to .ildz gets its palette
+ * headers back in the same place when it's converted back.
+ */
+public class IldzWriter implements Closeable
+{
+    static final int DEFAULT_FRAMES_PER_BLOCK = 16;
+
+    private final DataOutputStream out;
+    private final int framesPerBlock;
+    private final Deflater deflater;
+    private long written = IldzReader.HEADER_SIZE;
+
+    private final ByteArrayOutputStream blockBytes = new ByteArrayOutputStream();
+    private final DataOutputStream block = new DataOutputStream(blockBytes);
+    private int framesInBlock = 0;
+    private byte[] compressed = new byte[65536];
+
+    private long[] blockOffsets = new long[16];
+    private int[] blockCompressedSizes = new int[16];
+    private int[] blockSizes = new int[16];
+    private int[] blockFirstFrames = new int[16];
+    private int blockCount = 0;
+    private int[] frameOffsets = new int[256];
+    private int frameCount = 0;
+    private IldaPalette[] palettes = new IldaPalette[4];
+    private int[] paletteFirstFrames = new int[4];
+    private int paletteCount = 0;
+    private boolean closed = false;
+
+    public IldzWriter(String location) throws IOException
+    {
+        this(new FileOutputStream(location), DEFAULT_FRAMES_PER_BLOCK, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param stream         where the archive is written to, it gets closed when this writer is closed
+     * @param framesPerBlock amount of frames that get compressed together. More frames per block compress better,
+     *                       less frames make reading a single frame cheaper.
+     * @param level          Deflater compression level (0-9)
+     * @throws IOException when the header can't be written
+     */
+
+    public IldzWriter(OutputStream stream, int framesPerBlock, int level) throws IOException
+    {
+        if (framesPerBlock < 1) throw new IllegalArgumentException("A block should contain at least one frame");
+        this.framesPerBlock = framesPerBlock;
+        out = new DataOutputStream(new BufferedOutputStream(stream, 65536));
+        deflater = new Deflater(level);
+
+        out.write(IldzReader.MAGIC);
+        out.writeByte(IldzReader.FORMAT_VERSION);
+        out.writeByte(0);
+        out.writeByte(0);
+        out.writeByte(0);
+    }
+
+    /**
+     * Writes a list of frames to an .ildz archive
+     * @param location path of the archive
+     * @param frames   the frames
+     */
+
+    public static void writeFile(String location, List<IldaFrame> frames) throws IOException
+    {
+        try (IldzWriter writer = new IldzWriter(location))
+        {
+            for (IldaFrame frame : frames)
+            {
+                writer.addFrame(frame);
+            }
+        }
+    }
+
+    /**
+     * Converts an ilda file to an .ildz archive without loading the whole file in memory. The palettes in the file
+     * are stored in the archive with the frames they precede.
+     * @param ildLocation  path of the ilda file
+     * @param ildzLocation path of the archive
+     */
+
+    public static void convert(String ildLocation, String ildzLocation) throws IOException
+    {
+        try (IldaStreamReader reader = new IldaStreamReader(ildLocation);
+             IldzWriter writer = new IldzWriter(ildzLocation))
+        {
+            reader.palettesRead = new ArrayList<IldaPalette>();
+            while (reader.hasNext())
+            {
+                IldaFrame frame = reader.next();
+                writer.addPalettes(reader.palettesRead);
+                writer.addFrame(frame);
+            }
+            writer.addPalettes(reader.palettesRead);
+        }
+    }
+
+    /**
+     * Stores a palette in the archive. It applies to the frames added after it, IldzReader.convert writes it in front
+     * of them.
+     * @param palette the palette, it's interned so later changes don't affect the archive
+     */
+
+    public void addPalette(IldaPalette palette) throws IOException
+    {
+        if (closed) throw new IOException("The archive is already closed");
+        if (paletteCount == palettes.length)
+        {
+            palettes = Arrays.copyOf(palettes, paletteCount * 2);
+            paletteFirstFrames = Arrays.copyOf(paletteFirstFrames, paletteCount * 2);
+        }
+        palettes[paletteCount] = palette.intern();
+        paletteFirstFrames[paletteCount] = frameCount;
+        paletteCount++;
+    }
+
+    public void addFrame(IldaFrame frame) throws IOException
+    {
+        if (closed) throw new IOException("The archive is already closed");
+        if (frameCount == frameOffsets.length) frameOffsets = Arrays.copyOf(frameOffsets, frameCount * 2);
+        frameOffsets[frameCount++] = blockBytes.size();
+        IldzCodec.encodeFrame(frame, block);
+        if (++framesInBlock == framesPerBlock) flushBlock();
+    }
+
+    private void addPalettes(ArrayList<IldaPalette> palettes) throws IOException
+    {
+        for (IldaPalette palette : palettes)
+        {
+            addPalette(palette);
+        }
+        palettes.clear();
+    }
+
+    private void flushBlock() throws IOException
+    {
+        if (framesInBlock == 0) return;
+        byte[] raw = blockBytes.toByteArray();
+
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        int size = 0;
+        while (!deflater.finished())
+        {
+            if (size == compressed.length) compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            size += deflater.deflate(compressed, size, compressed.length - size);
+        }
+
+        if (blockCount == blockOffsets.length)
+        {
+            blockOffsets = Arrays.copyOf(blockOffsets, blockCount * 2);
+            blockCompressedSizes = Arrays.copyOf(blockCompressedSizes, blockCount * 2);
+            blockSizes = Arrays.copyOf(blockSizes, blockCount * 2);
+            blockFirstFrames = Arrays.copyOf(blockFirstFrames, blockCount * 2);
+        }
+        blockOffsets[blockCount] = written;
+        blockCompressedSizes[blockCount] = size;
+        blockSizes[blockCount] = raw.length;
+        blockFirstFrames[blockCount] = frameCount - framesInBlock;
+        blockCount++;
+
+        out.write(compressed, 0, size);
+        written += size;
+        blockBytes.reset();
+        framesInBlock = 0;
+    }
+
+    /**
+     * Writes the last block and the index, and closes the stream. Closing the writer again has no effect.
+     */
+
+    @Override
+    public void close() throws IOException
+    {
+        if (closed) return;
+        closed = true;
+        try {
+            flushBlock();
+            long indexOffset = written;
+            out.writeInt(frameCount);
+            out.writeInt(blockCount);
+            for (int i = 0; i < blockCount; i++)
+            {
+                out.writeLong(blockOffsets[i]);
+                out.writeInt(blockCompressedSizes[i]);
+                out.writeInt(blockSizes[i]);
+                out.writeInt(blockFirstFrames[i]);
+            }
+            for (int i = 0; i < frameCount; i++)
+            {
+                out.writeInt(frameOffsets[i]);
+            }
+            out.writeInt(paletteCount);
+            for (int i = 0; i < paletteCount; i++)
+            {
+                out.writeInt(paletteFirstFrames[i]);
+                IldzCodec.encodePalette(palettes[i], out);
+            }
+            out.writeLong(indexOffset);
+            out.write(IldzReader.MAGIC);
+        } finally {
+            deflater.end();
+            out.close();
+        }
+    }
+}
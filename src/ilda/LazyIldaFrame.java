@@ -0,0 +1,134 @@
+package ilda;
+
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * A frame that only holds a view on its point records in the source buffer and the header information.
+ * The points are decoded the first time they are needed. Header fields (name, company, point count, ...) are
+ * available without decoding anything, so workflows that only look at headers never decode points.
+ * <p>
+ * By default, the decoded points are kept and the frame behaves as a regular IldaFrame from then on.
+ * When soft caching is enabled, points decoded for reading (writing, rendering, comparing) are only softly reachable
+ * and get decoded again after the garbage collector cleared them. Once the points are retrieved for modification
+ * (getPoints(), getPointBuffer(), addPoint(), ...) they are kept like in a regular frame.
+ * </p>
+ * As long as a frame was not decoded, it keeps the buffer it was read from in memory.
+ */
+class LazyIldaFrame extends IldaFrame
+{
+    private ByteBuffer records;
+    private final IldaHeader header;
+    private final IldaPalette paletteColours;
+    private final boolean softCache;
+    private SoftReference<PointBuffer> cache;
+
+    /**
+     * @param header    header of the frame
+     * @param records   view on exactly the point records of this frame
+     * @param palette   palette used to colour format 0 and 1 frames
+     * @param softCache only keep the decoded points as long as there is enough memory
+     */
+
+    LazyIldaFrame(IldaHeader header, ByteBuffer records, IldaPalette palette, boolean softCache)
+    {
+        this.header = header;
+        this.records = records;
+        this.paletteColours = palette;
+        this.softCache = softCache;
+        points = null;
+
+        setIldaFormat(header.ildaVersion);
+        frameName = header.name;
+        companyName = header.company;
+        pointCount = header.pointCount;
+        frameNumber = header.frameNumber;
+        totalFrames = header.totalFrames;
+        scannerHead = header.scannerHead;
+        this.palette = header.usesPalette();
+    }
+
+    @Override
+    ArrayList<IldaPoint> pointList()
+    {
+        materialise();
+        return super.pointList();
+    }
+
+    @Override
+    PointBuffer pointBuffer()
+    {
+        materialise();
+        return super.pointBuffer();
+    }
+
+    @Override
+    PointBuffer pointsAsBuffer()
+    {
+        if (points != null || pointBuffer != null) return super.pointsAsBuffer();
+
+        PointBuffer decoded = cache == null ? null : cache.get();
+        if (decoded != null) return decoded;
+
+        decoded = decode();
+        if (softCache)
+        {
+            cache = new SoftReference<PointBuffer>(decoded);
+        } else
+        {
+            pointBuffer = decoded;
+            records = null;
+        }
+        return decoded;
+    }
+
+    @Override
+    int countPoints()
+    {
+        if (points != null || pointBuffer != null) return super.countPoints();
+        PointBuffer decoded = cache == null ? null : cache.get();
+        return decoded == null ? header.pointCount : decoded.size();
+    }
+
+    /**
+     * @return true if the points of this frame are currently decoded
+     */
+
+    boolean isDecoded()
+    {
+        return points != null || pointBuffer != null || (cache != null && cache.get() != null);
+    }
+
+    /**
+     * Makes the decoded points the permanent storage of this frame, so changes to them are kept
+     */
+
+    private void materialise()
+    {
+        if (points != null || pointBuffer != null) return;
+        PointBuffer decoded = cache == null ? null : cache.get();
+        pointBuffer = decoded != null ? decoded : decode();
+        records = null;
+        cache = null;
+    }
+
+    private PointBuffer decode()
+    {
+        ByteBuffer view = records.duplicate();
+        view.position(0);
+        PointBuffer decoded = new PointBuffer(header.pointCount);
+        for (int i = 0; i < header.pointCount; i++)
+        {
+            header.readPoint(view, decoded);
+        }
+        if (header.usesPalette())
+        {
+            for (int i = 0; i < decoded.size(); i++)
+            {
+                decoded.colour[i] = paletteColours.lookup(decoded.palIndex[i]);
+            }
+        }
+        return decoded;
+    }
+}
@@ -0,0 +1,214 @@
+package ilda;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the optimised points of frames, so a frame that is drawn again with the same points and settings (a logo,
+ * a held cue) is copied from the cache instead of being optimised again.
+ * Frames are looked up by a hash of their points and of the OptimisationSettings. The points and every setting are
+ * compared too, so a hash collision can't return the wrong frame.
+ * <p>
+ * The cache holds at most maxBytes of points, counting both the original and the optimised points of every frame.
+ * When it is full, the frames that were used least recently are removed.
+ * A cache should not be used by multiple threads at once, just like an Optimiser.
+ * </p>
+ * Example:
+ * <pre>
+ * OptimisationCache cache = new OptimisationCache(16 * 1024 * 1024);
+ * renderer.setOptimisationCache(cache);
+ * ...
+ * println(cache.getHits() + " hits, " + cache.getMisses() + " misses");
+ * </pre>
+ */
+public class OptimisationCache
+{
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+    private long maxBytes;
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxBytes maximum amount of memory used for points, approximately
+     */
+
+    public OptimisationCache(long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Optimises the points of a frame, or copies the result of an earlier call with the same points and settings
+     *
+     * @param optimiser the optimiser and its settings
+     * @param points    the points, they are replaced by the optimised points
+     * @return the same buffer
+     */
+
+    public PointBuffer optimiseSegment(Optimiser optimiser, PointBuffer points)
+    {
+        OptimisationSettings settings = optimiser.getSettings();
+        Long key = hash(points) * 31 + settings.fingerprint();
+        Entry entry = entries.get(key);
+        if (entry != null && entry.settings.sameOptimisation(settings) && entry.input.contentEquals(points))
+        {
+            hits++;
+            points.set(entry.output);
+            return points;
+        }
+
+        misses++;
+        PointBuffer input = points.copy();
+        optimiser.optimiseSegment(points);
+        if (entry != null) remove(key);
+        Entry added = new Entry(settings.copy(), input, points.copy());
+        if (added.bytes <= maxBytes)
+        {
+            entries.put(key, added);
+            bytes += added.bytes;
+            evict();
+        }
+        return points;
+    }
+
+    /**
+     * Removes all frames, the counters are not reset
+     */
+
+    public void clear()
+    {
+        entries.clear();
+        bytes = 0;
+    }
+
+    /**
+     * Sets the hit, miss and eviction counters to zero
+     */
+
+    public void resetCounters()
+    {
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+    }
+
+    public long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    /**
+     * @param maxBytes maximum amount of memory used for points, frames are removed right away if the cache is too big
+     */
+
+    public void setMaxBytes(long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    /**
+     * @return approximate amount of memory used for points
+     */
+
+    public long getBytes()
+    {
+        return bytes;
+    }
+
+    /**
+     * @return amount of frames in the cache
+     */
+
+    public int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * @return amount of frames that were copied from the cache
+     */
+
+    public long getHits()
+    {
+        return hits;
+    }
+
+    /**
+     * @return amount of frames that had to be optimised
+     */
+
+    public long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * @return amount of frames removed to stay within maxBytes
+     */
+
+    public long getEvictions()
+    {
+        return evictions;
+    }
+
+    private void remove(Long key)
+    {
+        Entry entry = entries.remove(key);
+        if (entry != null) bytes -= entry.bytes;
+    }
+
+    private void evict()
+    {
+        //Iterates from the least recently used frame
+        Iterator<Map.Entry<Long, Entry>> iterator = entries.entrySet().iterator();
+        while (bytes > maxBytes && iterator.hasNext())
+        {
+            bytes -= iterator.next().getValue().bytes;
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    private static long hash(PointBuffer points)
+    {
+        //FNV-1a over the values of every point
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < points.size(); i++)
+        {
+            hash = (hash ^ Float.floatToIntBits(points.getX(i))) * 0x100000001b3L;
+            hash = (hash ^ Float.floatToIntBits(points.getY(i))) * 0x100000001b3L;
+            hash = (hash ^ Float.floatToIntBits(points.getZ(i))) * 0x100000001b3L;
+            hash = (hash ^ points.getColour(i)) * 0x100000001b3L;
+            hash = (hash ^ (points.isBlanked(i) ? 0x100 : 0) ^ points.getPalIndex(i)) * 0x100000001b3L;
+        }
+        return hash ^ points.size();
+    }
+
+    private static long bytes(PointBuffer points)
+    {
+        int coordinateBytes = points.isNativeCoordinates() ? 6 : 12;
+        //Coordinates, colour, palette index and blanking bits, plus the arrays and the buffer itself
+        return (long) points.capacity() * (coordinateBytes + 5) + points.capacity() / 8 + 128;
+    }
+
+    private static class Entry
+    {
+        //A copy, so changing the settings afterwards doesn't change the entry
+        final OptimisationSettings settings;
+        final PointBuffer input;
+        final PointBuffer output;
+        final long bytes;
+
+        Entry(OptimisationSettings settings, PointBuffer input, PointBuffer output)
+        {
+            this.settings = settings;
+            this.input = input;
+            this.output = output;
+            bytes = bytes(input) + bytes(output) + 128;
+        }
+    }
+}
@@ -18,6 +18,15 @@ public class OptimisationSettings {
     protected boolean blankDwell = true;
     protected int blankDwellAmount = 2;
 
+    protected boolean reorderPaths = false;
+    protected float reorderTime = 2;
+
+    protected boolean simplify = false;
+    protected float simplifyTolerance = 0.002f;
+
+    protected int targetPps = 0;
+    protected float targetFps = 30;
+
     public OptimisationSettings() {
         interpolateLit = true;
         interpolateBlanked = true;
@@ -63,6 +72,187 @@ public class OptimisationSettings {
         this.angleDwell = angleDwell;
     }
 
+    public float getAngleDwellFactor() {
+        return angleDwellFactor;
+    }
+
+    /**
+     * @param angleDwellFactor amount of points added at a lit corner for every 45 degrees the direction changes
+     */
+
+    public void setAngleDwellFactor(float angleDwellFactor) {
+        this.angleDwellFactor = angleDwellFactor;
+    }
+
+    public boolean isBlankDwell() {
+        return blankDwell;
+    }
+
+    public void setBlankDwell(boolean blankDwell) {
+        this.blankDwell = blankDwell;
+    }
+
+    public int getBlankDwellAmount() {
+        return blankDwellAmount;
+    }
+
+    /**
+     * @param blankDwellAmount amount of points added where the laser turns on or off
+     */
+
+    public void setBlankDwellAmount(int blankDwellAmount) {
+        this.blankDwellAmount = blankDwellAmount;
+    }
+
+    public boolean isReorderPaths() {
+        return reorderPaths;
+    }
+
+    /**
+     * Should the lit paths of a frame be drawn in the order and direction that gives the shortest blanked jumps,
+     * instead of the order they were drawn in? The blanked points between paths are replaced by a single jump.
+     * @param reorderPaths reorder the paths?
+     */
+
+    public void setReorderPaths(boolean reorderPaths) {
+        this.reorderPaths = reorderPaths;
+    }
+
+    public float getReorderTime() {
+        return reorderTime;
+    }
+
+    /**
+     * @param reorderTime maximum time in milliseconds spent improving the order of the paths of a frame
+     */
+
+    public void setReorderTime(float reorderTime) {
+        this.reorderTime = reorderTime;
+    }
+
+    public boolean isSimplify() {
+        return simplify;
+    }
+
+    /**
+     * Should lit paths be simplified by removing points that hardly change their shape? Points where the laser turns
+     * on or off or changes colour are kept.
+     * @param simplify simplify lit paths?
+     */
+
+    public void setSimplify(boolean simplify) {
+        this.simplify = simplify;
+    }
+
+    public float getSimplifyTolerance() {
+        return simplifyTolerance;
+    }
+
+    /**
+     * @param simplifyTolerance a point is removed while the triangle it forms with its neighbours is smaller than a
+     *                          square with this size, in the same units as maxDistLit
+     */
+
+    public void setSimplifyTolerance(float simplifyTolerance) {
+        this.simplifyTolerance = simplifyTolerance;
+    }
+
+    /**
+     * Optimise every frame to the same amount of points: the amount a projector scanning at targetPps points per
+     * second can draw targetFps times per second. The interpolation distances are scaled to fill the budget
+     * (maxDistLit and maxDistBlank only set the ratio between them), and frames with too many points are simplified.
+     * @param targetPps points per second of the projector, 0 turns the point budget off
+     * @param targetFps frames per second
+     */
+
+    public void setPointBudget(int targetPps, float targetFps) {
+        this.targetPps = targetPps;
+        this.targetFps = targetFps;
+    }
+
+    /**
+     * @return amount of points every frame gets, or 0 if there is no point budget
+     */
+
+    public int getPointBudget() {
+        if (targetPps <= 0 || targetFps <= 0) return 0;
+        return Math.max(1, (int) (targetPps / targetFps));
+    }
+
+    public int getTargetPps() {
+        return targetPps;
+    }
+
+    public float getTargetFps() {
+        return targetFps;
+    }
+
+    /**
+     * @return a hash of all settings, equal for settings that optimise frames the same way
+     */
+
+    long fingerprint() {
+        long hash = 17;
+        hash = hash * 31 + (interpolateLit ? 1 : 0);
+        hash = hash * 31 + (interpolateBlanked ? 1 : 0);
+        hash = hash * 31 + Float.floatToIntBits(maxDistLit);
+        hash = hash * 31 + Float.floatToIntBits(maxDistBlank);
+        hash = hash * 31 + (angleDwell ? 1 : 0);
+        hash = hash * 31 + Float.floatToIntBits(angleDwellFactor);
+        hash = hash * 31 + (blankDwell ? 1 : 0);
+        hash = hash * 31 + blankDwellAmount;
+        hash = hash * 31 + (reorderPaths ? 1 : 0);
+        hash = hash * 31 + Float.floatToIntBits(reorderTime);
+        hash = hash * 31 + (simplify ? 1 : 0);
+        hash = hash * 31 + Float.floatToIntBits(simplifyTolerance);
+        hash = hash * 31 + getPointBudget();
+        return hash;
+    }
+
+    /**
+     * @return a copy of these settings, which doesn't change when these settings change
+     */
+
+    OptimisationSettings copy() {
+        OptimisationSettings copy = new OptimisationSettings();
+        copy.interpolateLit = interpolateLit;
+        copy.interpolateBlanked = interpolateBlanked;
+        copy.maxDistLit = maxDistLit;
+        copy.maxDistBlank = maxDistBlank;
+        copy.angleDwell = angleDwell;
+        copy.angleDwellFactor = angleDwellFactor;
+        copy.blankDwell = blankDwell;
+        copy.blankDwellAmount = blankDwellAmount;
+        copy.reorderPaths = reorderPaths;
+        copy.reorderTime = reorderTime;
+        copy.simplify = simplify;
+        copy.simplifyTolerance = simplifyTolerance;
+        copy.targetPps = targetPps;
+        copy.targetFps = targetFps;
+        return copy;
+    }
+
+    /**
+     * Compares every setting that fingerprint() is based on
+     * @return true if both settings optimise frames the same way
+     */
+
+    boolean sameOptimisation(OptimisationSettings other) {
+        return interpolateLit == other.interpolateLit
+                && interpolateBlanked == other.interpolateBlanked
+                && Float.floatToIntBits(maxDistLit) == Float.floatToIntBits(other.maxDistLit)
+                && Float.floatToIntBits(maxDistBlank) == Float.floatToIntBits(other.maxDistBlank)
+                && angleDwell == other.angleDwell
+                && Float.floatToIntBits(angleDwellFactor) == Float.floatToIntBits(other.angleDwellFactor)
+                && blankDwell == other.blankDwell
+                && blankDwellAmount == other.blankDwellAmount
+                && reorderPaths == other.reorderPaths
+                && Float.floatToIntBits(reorderTime) == Float.floatToIntBits(other.reorderTime)
+                && simplify == other.simplify
+                && Float.floatToIntBits(simplifyTolerance) == Float.floatToIntBits(other.simplifyTolerance)
+                && getPointBudget() == other.getPointBudget();
+    }
+
     public String[] generateOptimisationFile()
     {
         String[] out = new String[8];
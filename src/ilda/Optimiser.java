@@ -4,11 +4,21 @@ import java.util.ArrayList;
 
 /**
  * Optimises a frame or frame segments according to its OptimisationSettings.
+ * An Optimiser reuses its output storage between calls, so it should not be used by multiple threads at once.
  */
 public class Optimiser {
 
 
     private OptimisationSettings settings;
+    //Reused between calls so optimising a frame doesn't allocate new storage every time
+    private PointBuffer bufferOutput;
+    private PointBuffer listBuffer;
+    private final ArrayList<IldaPoint> listPoints = new ArrayList<IldaPoint>();
+    private PointBuffer reorderedBuffer;
+    private PointBuffer simplifiedBuffer;
+    private final PathSorter sorter = new PathSorter();
+    private final PathSimplifier simplifier = new PathSimplifier();
+    private final StreamingOptimiser stream = new StreamingOptimiser(null);
 
     public Optimiser(OptimisationSettings settings) {
         this.settings = settings;
@@ -22,55 +32,283 @@ public class Optimiser {
         this.settings = settings;
     }
 
+    /**
+     * Interpolates the jumps between points that are longer than the maximum distance in the settings, and repeats
+     * points at sharp corners (angle dwell) and where the laser turns on or off (blank dwell).
+     * If reorderPaths is set, the lit paths are put in a better order first. If simplify is set, points that hardly
+     * change the shape of a lit path are removed before interpolating. If a point budget is set, the frame is
+     * optimised to exactly that many points, see OptimisationSettings.setPointBudget().
+     * The points are copied into a reusable PointBuffer and optimised like optimiseSegment(PointBuffer), then copied
+     * back into the given list. Points that are not changed keep their IldaPoint objects.
+     *
+     * @param points the points, the interpolated points get inserted into this list
+     * @return the same list
+     */
+
     public ArrayList<IldaPoint> optimiseSegment(ArrayList<IldaPoint> points)
     {
-        float maxdistsqb = settings.maxDistBlank * settings.maxDistBlank;
-        float maxdistsql = settings.maxDistLit * settings.maxDistLit;
-        for (int i = points.size() - 2; i >= 0; i--) {
-            IldaPoint prevp = points.get(i + 1);
-            IldaPoint p = points.get(i);
-            IldaPoint nextp = null;
-            if (i != 0) nextp = points.get(i - 1);
-
-            float dpsq = (prevp.x - p.x) * (prevp.x - p.x) + (prevp.y - p.y) * (prevp.y - p.y) + (prevp.z - p.z) * (prevp.z - p.z);
-            float dnsq = 0;
-            if (nextp != null)
-                dnsq = (nextp.x - p.x) * (nextp.x - p.x) + (nextp.y - p.y) * (nextp.y - p.y) + (nextp.z - p.z) * (nextp.z - p.z);
-
-            if (settings.isAngleDwell()) {
-                if (nextp != null) {
-                    float dpnsq = (nextp.x - prevp.x) * (nextp.x - prevp.x) + (nextp.y - prevp.y) * (nextp.y - prevp.y) + (nextp.z - prevp.z) * (nextp.z - prevp.z);
-                    float factor = (dpsq + dnsq) / dpnsq;
-                    int dwellPoints = (int) (settings.angleDwellFactor * factor);
-                    //ilda.parent.println(factor, dwellPoints);
-                }
+        if (points.size() < 2 || !isActive()) return points;
+        //The points are optimised as a PointBuffer, so lists and buffers go through the same StreamingOptimiser pass
+        optimiseSegment(toBuffer(points), listOutputBuffer());
+        fromBuffer(bufferOutput, points);
+        return points;
+    }
+
+
+    /**
+     * Optimises the points of a frame stored in a PointBuffer, see optimiseSegment(ArrayList)
+     *
+     * @param points the points, interpolated points get inserted into this buffer
+     * @return the same buffer
+     */
+
+    public PointBuffer optimiseSegment(PointBuffer points)
+    {
+        if (points.size() < 2 || !isActive()) return points;
+        if (bufferOutput == null || bufferOutput.isNativeCoordinates() != points.isNativeCoordinates()) {
+            bufferOutput = new PointBuffer(points.size() * 2, points.isNativeCoordinates());
+        }
+        optimiseSegment(points, bufferOutput);
+        points.set(bufferOutput);
+        return points;
+    }
+
+    /**
+     * Optimises the points of a buffer into another buffer, the source buffer is not changed
+     *
+     * @param source      the points
+     * @param destination the buffer the optimised points are written to, its previous contents are removed
+     * @return the destination buffer
+     */
+
+    public PointBuffer optimiseSegment(PointBuffer source, PointBuffer destination)
+    {
+        if (source == destination) throw new IllegalArgumentException("The source and destination must be different buffers");
+        destination.clear();
+        if (source.size() == 0) return destination;
+        if (settings.reorderPaths) {
+            if (reorderedBuffer == null || reorderedBuffer.isNativeCoordinates() != source.isNativeCoordinates()) {
+                reorderedBuffer = new PointBuffer(source.size(), source.isNativeCoordinates());
             }
+            if (reorder(source, reorderedBuffer)) source = reorderedBuffer;
+        }
+        if (settings.simplify) {
+            if (simplifiedBuffer == null || simplifiedBuffer.isNativeCoordinates() != source.isNativeCoordinates()) {
+                simplifiedBuffer = new PointBuffer(source.size(), source.isNativeCoordinates());
+            }
+            if (simplify(source, simplifiedBuffer, 0)) source = simplifiedBuffer;
+        }
+        if (settings.getPointBudget() > 0) {
+            optimiseToBudget(source, destination, settings.getPointBudget());
+        } else {
+            process(source, destination, settings.maxDistLit, settings.maxDistBlank, true);
+        }
+        return destination;
+    }
 
-            if (settings.interpolateBlanked || settings.interpolateLit) {
+    /**
+     * The forward pass: interpolates jumps longer than the maximum distances and adds dwell points, see StreamingOptimiser
+     *
+     * @param destination receives the points, or null to only count them
+     * @return the amount of points in the result
+     */
 
+    private int process(PointBuffer source, PointBuffer destination, float maxDistLit, float maxDistBlank, boolean dwell)
+    {
+        if (destination != null) destination.ensureCapacity(source.size());
+        stream.setSettings(settings);
+        stream.begin(destination, maxDistLit, maxDistBlank, dwell);
+        for (int i = 0; i < source.size(); i++) {
+            stream.add(source, i);
+        }
+        return stream.end();
+    }
 
-                if ((prevp.blanked && dpsq > maxdistsqb && settings.interpolateBlanked) || (!prevp.blanked && dpsq > maxdistsql && settings.interpolateLit)) {
-                    double dist = Math.sqrt(dpsq);
-                    double maxDist = prevp.blanked ? settings.maxDistBlank : settings.maxDistLit;
-                    int addedPoints = (int) (dist / maxDist);
+    /**
+     * Optimises a frame to exactly a number of points. The spacing of the interpolated points is scaled (keeping the
+     * ratio between maxDistLit and maxDistBlank) to the smallest spacing that stays within the budget, and the
+     * points that are left over are spent on a blanked path from the last point back to the first.
+     * When the frame doesn't fit even without interpolation, the dwell points are left out, and if that's not enough
+     * the flattest corners are removed with the PathSimplifier.
+     */
 
-                    for (int j = 0; j <= addedPoints; j++) {
-                        IldaPoint newp = new IldaPoint(prevp);
-                        float factor = (float) ((1 - (dist - j * maxDist) / dist));
-                        newp.x = prevp.x + (p.x - prevp.x) * factor;
-                        newp.y = prevp.y + (p.y - prevp.y) * factor;
-                        newp.z = prevp.z + (p.z - prevp.z) * factor;
-                        points.add(i + 1, newp);
-                    }
+    private void optimiseToBudget(PointBuffer source, PointBuffer destination, int budget)
+    {
+        int size = source.size();
+        int dwellPoints = process(source, null, Float.MAX_VALUE, Float.MAX_VALUE, true) - size;
+        if (size + dwellPoints <= budget) {
+            float maxDistLit = settings.maxDistLit;
+            float maxDistBlank = settings.maxDistBlank;
+            if (settings.interpolateLit || settings.interpolateBlanked) {
+                //A scale at which no jump is long enough to be interpolated, and the smallest scale that fits
+                float longest = 0;
+                for (int i = 1; i < size; i++) {
+                    float dx = source.getX(i) - source.getX(i - 1);
+                    float dy = source.getY(i) - source.getY(i - 1);
+                    float dz = source.getZ(i) - source.getZ(i - 1);
+                    longest = Math.max(longest, dx * dx + dy * dy + dz * dz);
+                }
+                float high = (float) Math.sqrt(longest) / Math.min(maxDistLit, maxDistBlank) + 1;
+                float low = high / 1000000;
+                //The dwell points don't depend on the spacing, so they are only counted once
+                for (int i = 0; i < 32; i++) {
+                    float scale = (float) Math.sqrt(low * high);
+                    int count = process(source, null, maxDistLit * scale, maxDistBlank * scale, false) + dwellPoints;
+                    if (count <= budget) high = scale;
+                    else low = scale;
+                    if (count == budget) break;
                 }
+                maxDistLit *= high;
+                maxDistBlank *= high;
+            }
+            process(source, destination, maxDistLit, maxDistBlank, true);
+        } else if (size <= budget) {
+            process(source, destination, Float.MAX_VALUE, Float.MAX_VALUE, false);
+        } else {
+            simplify(source, destination, budget);
+        }
+
+        //Spend the remaining points on the jump back to the start of the frame
+        int remaining = budget - destination.size();
+        int last = destination.size() - 1;
+        float lx = destination.getX(last), ly = destination.getY(last), lz = destination.getZ(last);
+        float fx = destination.getX(0), fy = destination.getY(0), fz = destination.getZ(0);
+        destination.ensureCapacity(budget);
+        for (int k = 1; k <= remaining; k++) {
+            float factor = (float) k / (remaining + 1);
+            destination.add(lx + (fx - lx) * factor, ly + (fy - ly) * factor, lz + (fz - lz) * factor,
+                    destination.getColour(0), true, destination.getPalIndex(0));
+        }
+    }
 
+    /**
+     * Copies a list of points into the reusable list buffer
+     */
+
+    private PointBuffer toBuffer(ArrayList<IldaPoint> points)
+    {
+        if (listBuffer == null) listBuffer = new PointBuffer(points.size());
+        listBuffer.clear();
+        listBuffer.ensureCapacity(points.size());
+        for (int i = 0; i < points.size(); i++) {
+            listBuffer.add(points.get(i));
+        }
+        return listBuffer;
+    }
+
+    /**
+     * @return the reusable output buffer, with float coordinates so list points keep their exact position
+     */
+
+    private PointBuffer listOutputBuffer()
+    {
+        if (bufferOutput == null || bufferOutput.isNativeCoordinates()) bufferOutput = new PointBuffer(listBuffer.size() * 2);
+        return bufferOutput;
+    }
+
+    /**
+     * Replaces the points of a list with the points of a buffer. An original point that appears unchanged in the
+     * buffer, in the same order, is kept in the list. Only the points that are new or changed are created.
+     */
+
+    private void fromBuffer(PointBuffer source, ArrayList<IldaPoint> points)
+    {
+        listPoints.clear();
+        listPoints.addAll(points);
+        points.clear();
+        points.ensureCapacity(source.size());
+        int next = 0;
+        for (int i = 0; i < source.size(); i++) {
+            IldaPoint original = next < listPoints.size() ? listPoints.get(next) : null;
+            if (original != null && original.x == source.getX(i) && original.y == source.getY(i) && original.z == source.getZ(i)
+                    && original.colour == source.getColour(i) && original.blanked == source.isBlanked(i)
+                    && (original.palIndex & 0xff) == source.getPalIndex(i)) {
+                points.add(original);
+                next++;
+            } else {
+                IldaPoint point = new IldaPoint(source.getX(i), source.getY(i), source.getZ(i), source.getPalIndex(i), source.isBlanked(i));
+                point.colour = source.getColour(i);
+                points.add(point);
             }
+        }
+        listPoints.clear();
+    }
+
+    /**
+     * Removes the points that hardly change the shape of the lit paths, see PathSimplifier. Only points with a corner
+     * smaller than simplifyTolerance are removed, or with a minimum amount of points given, the flattest corners are
+     * removed until the frame has that many points.
+     *
+     * @param source      the points
+     * @param destination receives the remaining points
+     * @param minPoints   amount of points to keep, or 0 to use the tolerance. When more points can't be removed
+     *                    without changing blanking or colours, the frame is cut off at this amount.
+     * @return false if no points were removed, the destination is then not changed
+     */
 
+    private boolean simplify(PointBuffer source, PointBuffer destination, int minPoints)
+    {
+        float maxArea = minPoints > 0 ? Float.MAX_VALUE : settings.simplifyTolerance * settings.simplifyTolerance;
+        boolean[] removed = simplifier.simplify(source, maxArea, minPoints);
+        if (simplifier.getRemovedCount() == 0 && minPoints == 0) return false;
 
+        destination.clear();
+        destination.ensureCapacity(source.size() - simplifier.getRemovedCount());
+        for (int i = 0; i < source.size() && (minPoints == 0 || destination.size() < minPoints); i++) {
+            if (!removed[i]) destination.add(source, i);
         }
+        return true;
+    }
 
+    /**
+     * Splits the points in lit paths and puts them in the order found by the PathSorter.
+     * A path starts with the point it is entered at (blanked), followed by its lit points. Blanked points that don't
+     * start a path are left out. A reversed path is drawn from its last point to its first, every point gets the
+     * colour of the point after it so each line keeps its colour.
+     *
+     * @param source      the points
+     * @param destination receives the reordered points
+     * @return false if there is nothing to improve, the destination is then not changed
+     */
 
-        return points;
+    private boolean reorder(PointBuffer source, PointBuffer destination)
+    {
+        int size = source.size();
+        sorter.clear();
+        for (int i = 0; i < size - 1; i++) {
+            if ((i == 0 || source.isBlanked(i)) && !source.isBlanked(i + 1)) {
+                int last = i + 1;
+                while (last + 1 < size && !source.isBlanked(last + 1)) last++;
+                sorter.addPath(i, last, source.getX(i), source.getY(i), source.getZ(i), source.getX(last), source.getY(last), source.getZ(last));
+                i = last;
+            }
+        }
+        if (!sorter.sort(System.nanoTime() + (long) (settings.reorderTime * 1000000))) return false;
+
+        destination.clear();
+        destination.ensureCapacity(size);
+        for (int k = 0; k < sorter.size(); k++) {
+            int first = sorter.getFirst(k);
+            int last = sorter.getLast(k);
+            if (!sorter.isReversed(k)) {
+                destination.setBlanked(destination.add(source, first), true);
+                for (int j = first + 1; j <= last; j++) {
+                    destination.add(source, j);
+                }
+            } else {
+                destination.setBlanked(destination.add(source, last), true);
+                for (int j = last - 1; j >= first; j--) {
+                    destination.add(source.getX(j), source.getY(j), source.getZ(j), source.getColour(j + 1), false, source.getPalIndex(j + 1));
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean isActive()
+    {
+        return settings.reorderPaths || settings.simplify || settings.getPointBudget() > 0 || settings.interpolateBlanked || settings.interpolateLit || (settings.angleDwell && settings.angleDwellFactor > 0)
+                || (settings.blankDwell && settings.blankDwellAmount > 0);
     }
 
 
@@ -0,0 +1,338 @@
+package ilda;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Creates a palette that fits the colours used in a set of frames, instead of the fixed default palette.
+ * <p>
+ * The colours of all lit points are counted in a histogram with 5 bits per channel. The histogram is then divided
+ * with the median cut algorithm: the box of colours with the most points is split in two at the median of its
+ * longest side, until there are as many boxes as palette colours. Each palette colour is the average of the actual
+ * colours in its box, so frames with few colours get their exact colours back.
+ * </p>
+ * Example:
+ * <pre>
+ * IldaPalette palette = PaletteBuilder.buildPalette(frames, 256, true);
+ * IldaWriter.writeFile(sketchPath("show.ild"), frames, palette, 0);
+ * </pre>
+ */
+public class PaletteBuilder
+{
+    private static final int BINS = 1 << 15;
+
+    private final int maxColours;
+    private Histogram histogram = new Histogram();
+
+    /**
+     * @param maxColours amount of colours in the palette, between 1 and 256
+     */
+
+    public PaletteBuilder(int maxColours)
+    {
+        if (maxColours < 1 || maxColours > 256)
+        {
+            throw new IllegalArgumentException("A palette can have between 1 and 256 colours, not " + maxColours);
+        }
+        this.maxColours = maxColours;
+    }
+
+    /**
+     * Creates a palette for a set of frames, counting the colours in parallel in the common pool
+     * @param frames     the frames
+     * @param maxColours amount of colours in the palette, between 1 and 256
+     * @param remap      set the palette index of every point to the closest colour of the new palette
+     * @return the palette
+     */
+
+    public static IldaPalette buildPalette(List<IldaFrame> frames, int maxColours, boolean remap)
+    {
+        PaletteBuilder builder = new PaletteBuilder(maxColours);
+        builder.addFrames(frames, ForkJoinPool.commonPool());
+        IldaPalette palette = builder.build();
+        if (remap) palette.getQuantiser().remap(frames, ForkJoinPool.commonPool());
+        return palette;
+    }
+
+    /**
+     * Counts the colours of a frame
+     * @param frame the frame
+     */
+
+    public void addFrame(IldaFrame frame)
+    {
+        histogram.add(frame);
+    }
+
+    /**
+     * Counts the colours of frames concurrently
+     * @param frames the frames
+     * @param pool   the pool that counts the colours
+     */
+
+    public void addFrames(List<IldaFrame> frames, ForkJoinPool pool)
+    {
+        if (frames.isEmpty()) return;
+        int chunk = Math.max(16, frames.size() / (pool.getParallelism() * 4));
+        histogram.merge(pool.invoke(new HistogramTask(frames, 0, frames.size(), chunk)));
+    }
+
+    /**
+     * @return amount of different colours counted so far, at 5 bits per channel
+     */
+
+    public int getColourCount()
+    {
+        int count = 0;
+        for (int i = 0; i < BINS; i++)
+        {
+            if (histogram.counts[i] > 0) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Divides the counted colours in at most maxColours colours
+     * @return a new palette, with a single black colour if no colours were counted
+     */
+
+    public IldaPalette build()
+    {
+        ArrayList<Box> boxes = new ArrayList<Box>(maxColours);
+        Box all = new Box(0, 31, 0, 31, 0, 31);
+        all.shrink(histogram);
+        if (all.count > 0) boxes.add(all);
+
+        while (boxes.size() < maxColours)
+        {
+            //Split the most populated box that still contains more than one colour
+            Box largest = null;
+            for (Box box : boxes)
+            {
+                if (box.isSplittable() && (largest == null || box.count > largest.count)) largest = box;
+            }
+            if (largest == null) break;
+            boxes.add(largest.split(histogram));
+        }
+
+        IldaPalette palette = new IldaPalette();
+        palette.name = "Custom";
+        palette.companyName = "Ilda4P5";
+        if (boxes.isEmpty()) palette.addColour(0, 0, 0);
+        for (Box box : boxes)
+        {
+            box.addAverage(histogram, palette);
+        }
+        palette.totalColors = palette.getColourCount();
+        return palette;
+    }
+
+    private static int bin(int colour)
+    {
+        return ((colour >> 9) & 0x7c00) | ((colour >> 6) & 0x3e0) | ((colour >> 3) & 0x1f);
+    }
+
+    /**
+     * Point count and colour sums per 15 bit colour
+     */
+
+    private static class Histogram
+    {
+        final int[] counts = new int[BINS];
+        final long[] red = new long[BINS];
+        final long[] green = new long[BINS];
+        final long[] blue = new long[BINS];
+
+        void add(IldaFrame frame)
+        {
+            PointBuffer points = frame.pointsAsBuffer();
+            for (int i = 0; i < points.size(); i++)
+            {
+                if (points.isBlanked(i)) continue;
+                int c = points.colour[i];
+                int bin = bin(c);
+                counts[bin]++;
+                red[bin] += (c >> 16) & 0xff;
+                green[bin] += (c >> 8) & 0xff;
+                blue[bin] += c & 0xff;
+            }
+        }
+
+        void merge(Histogram other)
+        {
+            for (int i = 0; i < BINS; i++)
+            {
+                if (other.counts[i] == 0) continue;
+                counts[i] += other.counts[i];
+                red[i] += other.red[i];
+                green[i] += other.green[i];
+                blue[i] += other.blue[i];
+            }
+        }
+    }
+
+    private static class HistogramTask extends RecursiveTask<Histogram>
+    {
+        private static final long serialVersionUID = 1L;
+        private final List<IldaFrame> frames;
+        private final int from;
+        private final int to;
+        private final int chunk;
+
+        HistogramTask(List<IldaFrame> frames, int from, int to, int chunk)
+        {
+            this.frames = frames;
+            this.from = from;
+            this.to = to;
+            this.chunk = chunk;
+        }
+
+        @Override
+        protected Histogram compute()
+        {
+            if (to - from <= chunk)
+            {
+                Histogram histogram = new Histogram();
+                for (int i = from; i < to; i++)
+                {
+                    histogram.add(frames.get(i));
+                }
+                return histogram;
+            }
+            int mid = (from + to) >>> 1;
+            HistogramTask left = new HistogramTask(frames, from, mid, chunk);
+            left.fork();
+            Histogram right = new HistogramTask(frames, mid, to, chunk).compute();
+            Histogram result = left.join();
+            result.merge(right);
+            return result;
+        }
+    }
+
+    /**
+     * A range of 5 bit colour values on each axis, inclusive
+     */
+
+    private static class Box
+    {
+        int[] min = new int[3];
+        int[] max = new int[3];
+        long count;
+
+        Box(int r0, int r1, int g0, int g1, int b0, int b1)
+        {
+            min[0] = r0;
+            max[0] = r1;
+            min[1] = g0;
+            max[1] = g1;
+            min[2] = b0;
+            max[2] = b1;
+        }
+
+        boolean isSplittable()
+        {
+            return min[0] < max[0] || min[1] < max[1] || min[2] < max[2];
+        }
+
+        /**
+         * Shrinks the box to the smallest box around the colours it contains and counts them
+         */
+
+        void shrink(Histogram histogram)
+        {
+            int[] lo = {31, 31, 31};
+            int[] hi = {0, 0, 0};
+            count = 0;
+            for (int r = min[0]; r <= max[0]; r++)
+            {
+                for (int g = min[1]; g <= max[1]; g++)
+                {
+                    for (int b = min[2]; b <= max[2]; b++)
+                    {
+                        int n = histogram.counts[(r << 10) | (g << 5) | b];
+                        if (n == 0) continue;
+                        count += n;
+                        if (r < lo[0]) lo[0] = r;
+                        if (r > hi[0]) hi[0] = r;
+                        if (g < lo[1]) lo[1] = g;
+                        if (g > hi[1]) hi[1] = g;
+                        if (b < lo[2]) lo[2] = b;
+                        if (b > hi[2]) hi[2] = b;
+                    }
+                }
+            }
+            if (count > 0)
+            {
+                min = lo;
+                max = hi;
+            }
+        }
+
+        /**
+         * Splits the box at the median of its longest side. This box keeps the lower half.
+         * @return the upper half
+         */
+
+        Box split(Histogram histogram)
+        {
+            int axis = 0;
+            for (int a = 1; a < 3; a++)
+            {
+                if (max[a] - min[a] > max[axis] - min[axis]) axis = a;
+            }
+
+            //Count the points in each slice along the axis
+            long[] slices = new long[32];
+            for (int r = min[0]; r <= max[0]; r++)
+            {
+                for (int g = min[1]; g <= max[1]; g++)
+                {
+                    for (int b = min[2]; b <= max[2]; b++)
+                    {
+                        int position = axis == 0 ? r : axis == 1 ? g : b;
+                        slices[position] += histogram.counts[(r << 10) | (g << 5) | b];
+                    }
+                }
+            }
+
+            //The lower half ends at the slice where half of the points are reached, but keeps the last slice for the upper half
+            long half = count / 2;
+            long sum = 0;
+            int cut = min[axis];
+            while (cut < max[axis] - 1 && sum + slices[cut] < half)
+            {
+                sum += slices[cut];
+                cut++;
+            }
+
+            Box upper = new Box(min[0], max[0], min[1], max[1], min[2], max[2]);
+            upper.min[axis] = cut + 1;
+            max[axis] = cut;
+            shrink(histogram);
+            upper.shrink(histogram);
+            return upper;
+        }
+
+        void addAverage(Histogram histogram, IldaPalette palette)
+        {
+            long n = 0, r = 0, g = 0, b = 0;
+            for (int x = min[0]; x <= max[0]; x++)
+            {
+                for (int y = min[1]; y <= max[1]; y++)
+                {
+                    for (int z = min[2]; z <= max[2]; z++)
+                    {
+                        int bin = (x << 10) | (y << 5) | z;
+                        n += histogram.counts[bin];
+                        r += histogram.red[bin];
+                        g += histogram.green[bin];
+                        b += histogram.blue[bin];
+                    }
+                }
+            }
+            palette.addColour((int) ((r + n / 2) / n), (int) ((g + n / 2) / n), (int) ((b + n / 2) / n));
+        }
+    }
+}
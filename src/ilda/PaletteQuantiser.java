@@ -0,0 +1,237 @@
+package ilda;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Finds the palette colour closest to an RGB colour, to export true-colour frames to a palette format (0 or 1).
+ * The colours of the palette are stored in a k-d tree, so a lookup doesn't need to compare against every colour.
+ * Recently matched colours are remembered in a small table, as frames usually only use a few distinct colours.
+ * <p>
+ * The closest colour is the one with the smallest Euclidean distance in RGB space, the lowest index wins a tie.
+ * A quantiser is created once per palette and cached, see IldaPalette.getQuantiser(). It reflects the colours the
+ * palette had at that moment. It is safe to use from multiple threads.
+ * </p>
+ */
+public class PaletteQuantiser
+{
+    private static final int CACHE_BITS = 12;
+    private static final int CACHE_MASK = (1 << CACHE_BITS) - 1;
+
+    private final int[] colours;
+    //k-d tree stored in an array: node i has its colour index in tree[i], children are the halves of its range
+    private final int[] tree;
+    private final byte[] axes;
+    //Colour in the upper 24 bits, its palette index in the lower 8 bits
+    private final int[] cache = new int[1 << CACHE_BITS];
+
+    /**
+     * Builds a quantiser for the current colours of a palette
+     * @param palette the palette
+     */
+
+    public PaletteQuantiser(IldaPalette palette)
+    {
+        int n = palette.getColourCount();
+        colours = new int[n];
+        for (int i = 0; i < n; i++)
+        {
+            colours[i] = palette.getColour(i) & 0xffffff;
+        }
+
+        tree = new int[n];
+        axes = new byte[n];
+        for (int i = 0; i < n; i++)
+        {
+            tree[i] = i;
+        }
+        build(0, n);
+
+        //Every slot starts with a valid entry: colour s lands in slot s
+        for (int s = 0; s < cache.length; s++)
+        {
+            cache[s] = (s << 8) | search(s);
+        }
+    }
+
+    /**
+     * @param colour an RGB colour, the alpha bits are ignored
+     * @return index of the closest colour in the palette (0 if the palette is empty)
+     */
+
+    public int getIndex(int colour)
+    {
+        colour &= 0xffffff;
+        int slot = (colour ^ (colour >>> CACHE_BITS)) & CACHE_MASK;
+        int entry = cache[slot];
+        if ((entry >>> 8) == colour) return entry & 0xff;
+
+        int index = search(colour);
+        cache[slot] = (colour << 8) | index;
+        return index;
+    }
+
+    /**
+     * @return the amount of colours that can be matched
+     */
+
+    public int getColourCount()
+    {
+        return colours.length;
+    }
+
+    /**
+     * Sets the palette index of every point in a frame to the palette colour closest to the point's colour.
+     * The colour of the points is not changed.
+     * @param frame the frame
+     */
+
+    public void remap(IldaFrame frame)
+    {
+        frame.detachPoints();
+        if (frame.points != null)
+        {
+            for (IldaPoint point : frame.points)
+            {
+                point.palIndex = (byte) getIndex(point.colour);
+            }
+        } else
+        {
+            PointBuffer points = frame.pointBuffer();
+            for (int i = 0; i < points.size(); i++)
+            {
+                points.palIndex[i] = (byte) getIndex(points.colour[i]);
+            }
+        }
+    }
+
+    /**
+     * Remaps all frames concurrently, see remap(IldaFrame)
+     * @param frames the frames
+     * @param pool   the pool that remaps the frames
+     */
+
+    public void remap(List<IldaFrame> frames, ForkJoinPool pool)
+    {
+        pool.invoke(new RemapTask(this, frames, 0, frames.size()));
+    }
+
+    private void build(int from, int to)
+    {
+        if (to - from <= 1) return;
+
+        //Split on the axis with the largest spread
+        int[] min = {255, 255, 255};
+        int[] max = {0, 0, 0};
+        for (int i = from; i < to; i++)
+        {
+            for (int axis = 0; axis < 3; axis++)
+            {
+                int c = component(colours[tree[i]], axis);
+                if (c < min[axis]) min[axis] = c;
+                if (c > max[axis]) max[axis] = c;
+            }
+        }
+        int axis = 0;
+        if (max[1] - min[1] > max[axis] - min[axis]) axis = 1;
+        if (max[2] - min[2] > max[axis] - min[axis]) axis = 2;
+
+        //Sorting a range of at most 256 entries, insertion sort is fine
+        for (int i = from + 1; i < to; i++)
+        {
+            int value = tree[i];
+            int key = component(colours[value], axis);
+            int j = i - 1;
+            while (j >= from && component(colours[tree[j]], axis) > key)
+            {
+                tree[j + 1] = tree[j];
+                j--;
+            }
+            tree[j + 1] = value;
+        }
+
+        int mid = (from + to) >>> 1;
+        axes[mid] = (byte) axis;
+        build(from, mid);
+        build(mid + 1, to);
+    }
+
+    private int search(int colour)
+    {
+        if (colours.length == 0) return 0;
+        int[] best = {Integer.MAX_VALUE, 0};
+        search(colour, 0, colours.length, best);
+        return best[1];
+    }
+
+    private void search(int colour, int from, int to, int[] best)
+    {
+        if (from >= to) return;
+        int mid = (from + to) >>> 1;
+        int index = tree[mid];
+        int c = colours[index];
+
+        int dr = ((c >> 16) & 0xff) - ((colour >> 16) & 0xff);
+        int dg = ((c >> 8) & 0xff) - ((colour >> 8) & 0xff);
+        int db = (c & 0xff) - (colour & 0xff);
+        int d = dr * dr + dg * dg + db * db;
+        if (d < best[0] || (d == best[0] && index < best[1]))
+        {
+            best[0] = d;
+            best[1] = index;
+        }
+
+        int axis = axes[mid];
+        int diff = component(colour, axis) - component(c, axis);
+        if (diff < 0)
+        {
+            search(colour, from, mid, best);
+            if (diff * diff <= best[0]) search(colour, mid + 1, to, best);
+        } else
+        {
+            search(colour, mid + 1, to, best);
+            if (diff * diff <= best[0]) search(colour, from, mid, best);
+        }
+    }
+
+    private static int component(int colour, int axis)
+    {
+        return (colour >> (16 - 8 * axis)) & 0xff;
+    }
+
+    private static class RemapTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+        private static final int THRESHOLD = 16;
+
+        private final PaletteQuantiser quantiser;
+        private final List<IldaFrame> frames;
+        private final int from;
+        private final int to;
+
+        RemapTask(PaletteQuantiser quantiser, List<IldaFrame> frames, int from, int to)
+        {
+            this.quantiser = quantiser;
+            this.frames = frames;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (to - from <= THRESHOLD)
+            {
+                for (int i = from; i < to; i++)
+                {
+                    quantiser.remap(frames.get(i));
+                }
+            } else
+            {
+                int mid = (from + to) >>> 1;
+                invokeAll(new RemapTask(quantiser, frames, from, mid), new RemapTask(quantiser, frames, mid, to));
+            }
+        }
+    }
+}
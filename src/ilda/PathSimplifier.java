@@ -0,0 +1,164 @@
+package ilda;
+
+import java.util.Arrays;
+
+/**
+ * Removes points from lit paths that hardly change their shape, with the Visvalingam-Whyatt algorithm.
+ * Every point has the area of the triangle it forms with its neighbours. The point with the smallest area is removed
+ * and the areas of its neighbours are updated, until the smallest area reaches the limit or enough points are removed.
+ * A heap keeps the smallest area on top, so a frame of n points takes O(n log n).
+ * <p>
+ * Only points between two lit lines of the same colour can be removed, so blanking and colour changes stay where
+ * they are. The arrays are reused, so simplifying the next frame doesn't allocate.
+ * </p>
+ */
+class PathSimplifier
+{
+    private int[] previous = new int[0];
+    private int[] next = new int[0];
+    private float[] areas = new float[0];
+    private int[] heap = new int[0];
+    private int[] heapIndex = new int[0];
+    private boolean[] removed = new boolean[0];
+    private int heapSize;
+    private int removedCount;
+
+    /**
+     * @param points    the points, they are not changed
+     * @param maxArea   points with a smaller area are removed
+     * @param minPoints stop when only this many points are left
+     * @return for every point whether it should be removed, valid until the next call
+     */
+
+    boolean[] simplify(PointBuffer points, float maxArea, int minPoints)
+    {
+        int size = points.size();
+        if (removed.length < size)
+        {
+            int capacity = Math.max(size, removed.length * 2);
+            previous = new int[capacity];
+            next = new int[capacity];
+            areas = new float[capacity];
+            heap = new int[capacity];
+            heapIndex = new int[capacity];
+            removed = new boolean[capacity];
+        }
+        Arrays.fill(removed, 0, size, false);
+        Arrays.fill(heapIndex, 0, size, -1);
+        heapSize = 0;
+        removedCount = 0;
+
+        for (int i = 0; i < size; i++)
+        {
+            previous[i] = i - 1;
+            next[i] = i + 1;
+        }
+        for (int i = 1; i < size - 1; i++)
+        {
+            if (points.isBlanked(i) || points.isBlanked(i + 1)) continue;
+            if (points.getColour(i) != points.getColour(i + 1) || points.getPalIndex(i) != points.getPalIndex(i + 1)) continue;
+            areas[i] = area(points, i - 1, i, i + 1);
+            heapIndex[i] = heapSize;
+            heap[heapSize++] = i;
+        }
+        for (int i = heapSize / 2 - 1; i >= 0; i--)
+        {
+            siftDown(i);
+        }
+
+        while (heapSize > 0 && size - removedCount > minPoints)
+        {
+            int i = heap[0];
+            float area = areas[i];
+            if (area >= maxArea) break;
+            removeTop();
+            removed[i] = true;
+            removedCount++;
+
+            int p = previous[i];
+            int n = next[i];
+            next[p] = n;
+            previous[n] = p;
+            //A neighbour never gets a smaller area than the point just removed, so the removal order stays consistent
+            update(points, p, area);
+            update(points, n, area);
+        }
+        return removed;
+    }
+
+    /**
+     * @return amount of points removed by the last call to simplify()
+     */
+
+    int getRemovedCount()
+    {
+        return removedCount;
+    }
+
+    private void update(PointBuffer points, int i, float minArea)
+    {
+        int index = heapIndex[i];
+        if (index < 0) return;
+        float old = areas[i];
+        areas[i] = Math.max(area(points, previous[i], i, next[i]), minArea);
+        if (areas[i] < old) siftUp(index);
+        else siftDown(index);
+    }
+
+    private static float area(PointBuffer points, int a, int b, int c)
+    {
+        float ux = points.getX(b) - points.getX(a), uy = points.getY(b) - points.getY(a), uz = points.getZ(b) - points.getZ(a);
+        float vx = points.getX(c) - points.getX(b), vy = points.getY(c) - points.getY(b), vz = points.getZ(c) - points.getZ(b);
+        float cx = uy * vz - uz * vy, cy = uz * vx - ux * vz, cz = ux * vy - uy * vx;
+        return 0.5f * (float) Math.sqrt(cx * cx + cy * cy + cz * cz);
+    }
+
+    private boolean less(int a, int b)
+    {
+        return areas[a] < areas[b] || (areas[a] == areas[b] && a < b);
+    }
+
+    private void removeTop()
+    {
+        heapIndex[heap[0]] = -1;
+        heapSize--;
+        if (heapSize > 0)
+        {
+            heap[0] = heap[heapSize];
+            heapIndex[heap[0]] = 0;
+            siftDown(0);
+        }
+    }
+
+    private void siftUp(int index)
+    {
+        int point = heap[index];
+        while (index > 0)
+        {
+            int parent = (index - 1) >>> 1;
+            if (!less(point, heap[parent])) break;
+            heap[index] = heap[parent];
+            heapIndex[heap[index]] = index;
+            index = parent;
+        }
+        heap[index] = point;
+        heapIndex[point] = index;
+    }
+
+    private void siftDown(int index)
+    {
+        int point = heap[index];
+        while (true)
+        {
+            int child = 2 * index + 1;
+            if (child >= heapSize) break;
+            if (child + 1 < heapSize && less(heap[child + 1], heap[child])) child++;
+            if (!less(heap[child], point)) break;
+            heap[index] = heap[child];
+            heapIndex[heap[index]] = index;
+            index = child;
+        }
+        heap[index] = point;
+        heapIndex[point] = index;
+    }
+}
@@ -0,0 +1,247 @@
+package ilda;
+
+import java.util.Arrays;
+
+/**
+ * Finds an order and direction to draw the lit paths of a frame in, so the blanked jumps between them are short.
+ * A tour is built with the nearest neighbour heuristic and then improved with 2-opt moves until no move helps or
+ * the time runs out. If the time runs out while building the tour, the remaining paths follow in the order they were
+ * added. Reversing a part of the tour also reverses the direction of the paths in it, and a move on a
+ * single path just changes its direction.
+ * <p>
+ * The frame is drawn in a loop, so the jump from the last path back to the first counts too. The first path stays
+ * first and keeps its direction. The arrays are reused, so sorting the next frame doesn't allocate.
+ * </p>
+ */
+class PathSorter
+{
+    private int count = 0;
+    //Index of the first and last point of each path in the frame
+    private int[] firsts = new int[16];
+    private int[] lasts = new int[16];
+    //x, y and z of the first and last point of each path
+    private float[] entries = new float[48];
+    private float[] exits = new float[48];
+    private int[] tour = new int[16];
+    private boolean[] reversed = new boolean[16];
+    private boolean[] visited = new boolean[16];
+
+    void clear()
+    {
+        count = 0;
+    }
+
+    int size()
+    {
+        return count;
+    }
+
+    /**
+     * @param first index of the first point of the path
+     * @param last  index of the last point of the path
+     */
+
+    void addPath(int first, int last, float startX, float startY, float startZ, float endX, float endY, float endZ)
+    {
+        if (count == tour.length)
+        {
+            int capacity = count * 2;
+            firsts = Arrays.copyOf(firsts, capacity);
+            lasts = Arrays.copyOf(lasts, capacity);
+            entries = Arrays.copyOf(entries, capacity * 3);
+            exits = Arrays.copyOf(exits, capacity * 3);
+            tour = Arrays.copyOf(tour, capacity);
+            reversed = Arrays.copyOf(reversed, capacity);
+            visited = Arrays.copyOf(visited, capacity);
+        }
+        firsts[count] = first;
+        lasts[count] = last;
+        entries[count * 3] = startX;
+        entries[count * 3 + 1] = startY;
+        entries[count * 3 + 2] = startZ;
+        exits[count * 3] = endX;
+        exits[count * 3 + 1] = endY;
+        exits[count * 3 + 2] = endZ;
+        count++;
+    }
+
+    /**
+     * Sorts the paths added since the last clear()
+     *
+     * @param deadline System.nanoTime() after which no more time is spent on the tour
+     * @return true if the new order has shorter jumps than the order the paths were added in
+     */
+
+    boolean sort(long deadline)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            tour[i] = i;
+            reversed[i] = false;
+        }
+        if (count < 2) return false;
+        float originalLength = tourLength();
+
+        nearestNeighbour(deadline);
+
+        boolean improved = true;
+        search:
+        while (improved)
+        {
+            improved = false;
+            for (int i = 1; i < count; i++)
+            {
+                for (int j = i; j < count; j++)
+                {
+                    //A row of moves and a reversal both take time proportional to the amount of paths
+                    if (((j - i) & 255) == 0 && System.nanoTime() >= deadline) break search;
+                    int next = j + 1 == count ? 0 : j + 1;
+                    //Reversing tour[i..j] replaces the jumps into i and out of j, the jumps within stay the same length
+                    float delta = distance(i - 1, true, j, true) + distance(i, false, next, false)
+                            - distance(i - 1, true, i, false) - distance(j, true, next, false);
+                    if (delta < -1e-6f)
+                    {
+                        reverse(i, j);
+                        improved = true;
+                        if (System.nanoTime() >= deadline) break search;
+                    }
+                }
+            }
+        }
+
+        return tourLength() < originalLength;
+    }
+
+    /**
+     * @param position place in the sorted order
+     * @return index of the first point of the path to draw at that place
+     */
+
+    int getFirst(int position)
+    {
+        return firsts[tour[position]];
+    }
+
+    /**
+     * @param position place in the sorted order
+     * @return index of the last point of the path to draw at that place
+     */
+
+    int getLast(int position)
+    {
+        return lasts[tour[position]];
+    }
+
+    /**
+     * @param position place in the sorted order
+     * @return should the path at that place be drawn from its last point to its first?
+     */
+
+    boolean isReversed(int position)
+    {
+        return reversed[position];
+    }
+
+    private void nearestNeighbour(long deadline)
+    {
+        Arrays.fill(visited, 0, count, false);
+        visited[0] = true;
+        for (int position = 1; position < count; position++)
+        {
+            //Every step searches all paths, so large frames can take longer than the deadline
+            if (System.nanoTime() >= deadline)
+            {
+                for (int p = 0; p < count; p++)
+                {
+                    if (visited[p]) continue;
+                    tour[position] = p;
+                    reversed[position++] = false;
+                }
+                return;
+            }
+            int current = tour[position - 1];
+            float[] from = reversed[position - 1] ? entries : exits;
+            float x = from[current * 3], y = from[current * 3 + 1], z = from[current * 3 + 2];
+
+            int best = -1;
+            boolean bestReversed = false;
+            float bestDistance = Float.MAX_VALUE;
+            for (int p = 0; p < count; p++)
+            {
+                if (visited[p]) continue;
+                float d = distanceSq(x, y, z, entries, p);
+                if (d < bestDistance)
+                {
+                    bestDistance = d;
+                    best = p;
+                    bestReversed = false;
+                }
+                d = distanceSq(x, y, z, exits, p);
+                if (d < bestDistance)
+                {
+                    bestDistance = d;
+                    best = p;
+                    bestReversed = true;
+                }
+            }
+            visited[best] = true;
+            tour[position] = best;
+            reversed[position] = bestReversed;
+        }
+    }
+
+    private void reverse(int from, int to)
+    {
+        while (from < to)
+        {
+            int path = tour[from];
+            tour[from] = tour[to];
+            tour[to] = path;
+            boolean r = reversed[from];
+            reversed[from] = !reversed[to];
+            reversed[to] = !r;
+            from++;
+            to--;
+        }
+        if (from == to) reversed[from] = !reversed[from];
+    }
+
+    private float tourLength()
+    {
+        float length = 0;
+        for (int i = 0; i < count; i++)
+        {
+            length += distance(i, true, i + 1 == count ? 0 : i + 1, false);
+        }
+        return length;
+    }
+
+    /**
+     * Distance between the ends of the paths at two places in the tour
+     *
+     * @param a    place of the first path
+     * @param aEnd use the point the first path is left from, or else the point it is entered at
+     * @param b    place of the second path
+     * @param bEnd use the point the second path is left from, or else the point it is entered at
+     */
+
+    private float distance(int a, boolean aEnd, int b, boolean bEnd)
+    {
+        float[] fromPoints = aEnd != reversed[a] ? exits : entries;
+        int p = tour[a] * 3;
+        return distance(fromPoints[p], fromPoints[p + 1], fromPoints[p + 2], bEnd != reversed[b] ? exits : entries, tour[b]);
+    }
+
+    private static float distance(float x, float y, float z, float[] points, int path)
+    {
+        return (float) Math.sqrt(distanceSq(x, y, z, points, path));
+    }
+
+    private static float distanceSq(float x, float y, float z, float[] points, int path)
+    {
+        float dx = points[path * 3] - x;
+        float dy = points[path * 3 + 1] - y;
+        float dz = points[path * 3 + 2] - z;
+        return dx * dx + dy * dy + dz * dz;
+    }
+}
@@ -1,5 +1,15 @@
 package ilda;
 
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads LSX .PIC files, which contain a single frame.
+ * A .PIC file starts with a version byte and a short header, after which the point records follow.
+ * Version 0 and 1 files use 8 bytes per point (X, Y and Z as signed 16 bit numbers, a status byte and a spare byte),
+ * later versions add three colour bytes (R, G and B) for 11 bytes per point.
+ * The status byte holds the blanking bit (0x40), a flag that is not set for normal vectors (0x80) and a 6 bit palette index.
+ */
 public class PicReader extends FileParser
 {
     PicReader(String location)
@@ -7,10 +17,15 @@ public class PicReader extends FileParser
         super(location);
     }
 
+    PicReader(InputStream stream) throws IOException
+    {
+        super(stream);
+    }
+
     /**
      * Returns the frame in a .PIC file
      * @param location String that contains the path to the file on disk
-     * @return
+     * @return the frame
      */
 
     public static IldaFrame getFrame(String location)
@@ -19,44 +34,55 @@ public class PicReader extends FileParser
         return parser.getFrame();
     }
 
-    public IldaFrame getFrame()
-    {
-        int version = b[0];
-        int bbp = (version == 1 || version == 0) ? 8 : 11;  //bits per point
-        int begin = version == 0 ? 15 : 14;
-        IldaFrame frame = new IldaFrame();
-        for (int i = begin; i < b.length; i++)
-        {
-            if (i <= b.length - bbp)
-            {
-                float x = ((b[i] << 8) & 0xff00) | (b[i+1] & 0x00ff);
-                float y = ((b[i+2] << 8) & 0xff00) | (b[i+3] & 0x00ff);
-                float z = ((b[i+4] << 8) & 0xff00) | (b[i+5] & 0x00ff);
-
-                boolean bl = false;           //blanking
-                boolean normalVector = false; //ignore normal vectors
+    /**
+     * Returns the frame in a .PIC file read from a stream. The stream is not closed.
+     * @param stream the contents of a .PIC file
+     * @return the frame
+     * @throws IOException when the stream can't be read
+     */
 
+    public static IldaFrame getFrame(InputStream stream) throws IOException
+    {
+        PicReader parser = new PicReader(stream);
+        return parser.getFrame();
+    }
 
-                if ((b[i+6] & 0x40) == 64) bl = true;
-                if ((b[i+6] & 0x80) != 128) normalVector = true;
-                int palIndex = b[i+6] & 0x3F;     //only the last 6 bits are used for the palette colour (64 maximum)
+    static int recordSize(int version)
+    {
+        return (version == 1 || version == 0) ? 8 : 11;
+    }
 
-                if (!normalVector)
-                {
-                    if(version == 0 || version == 1)
-                    {
-                        IldaPoint point = new IldaPoint(x * 0.00003051757f, y * 0.00003051757f, z * 0.00003051757f, palIndex, bl);
-                        frame.addPoint(point);
-                    }
-                    else
-                    {
-                        IldaPoint point = new IldaPoint(x * 0.00003051757f, y * 0.00003051757f, z * 0.00003051757f, b[i + 8], b[i+9], b[i+10], bl);
-                        frame.addPoint(point);
-                    }
+    static int headerSize(int version)
+    {
+        return version == 0 ? 15 : 14;
+    }
 
-                }
+    public IldaFrame getFrame()
+    {
+        int length = buffer.limit();
+        int version = buffer.get(0);
+        int bbp = recordSize(version);  //bytes per point
+        int begin = headerSize(version);
+        PointBuffer points = new PointBuffer(Math.max(0, (length - begin) / bbp));
+        IldaFrame frame = new IldaFrame(points);
+        for (int i = begin; i <= length - bbp; i += bbp)
+        {
+            int status = buffer.get(i + 6);
+            if ((status & 0x80) != 128) continue; //ignore normal vectors
 
+            float x = buffer.getShort(i);
+            float y = buffer.getShort(i + 2);
+            float z = buffer.getShort(i + 4);
+            boolean bl = (status & 0x40) == 64;   //blanking
 
+            if (version == 0 || version == 1)
+            {
+                int palIndex = status & 0x3F;     //only the last 6 bits are used for the palette colour (64 maximum)
+                points.add(x * 0.00003051757f, y * 0.00003051757f, z * 0.00003051757f, 0, bl, palIndex);
+            } else
+            {
+                int colour = ((buffer.get(i + 8) & 0xff) << 16) | ((buffer.get(i + 9) & 0xff) << 8) | (buffer.get(i + 10) & 0xff);
+                points.add(x * 0.00003051757f, y * 0.00003051757f, z * 0.00003051757f, colour, bl, 0);
             }
         }
         frame.palette = version == 0 || version == 1;
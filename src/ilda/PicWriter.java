@@ -0,0 +1,91 @@
+package ilda;
+
+import processing.core.PApplet;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+/**
+ * Writes an IldaFrame to an LSX .PIC file.
+ * The point records use the layout PicReader reads, see there. Only the version byte of the header is written,
+ * the rest of the header is left empty.
+ */
+public class PicWriter
+{
+
+    /**
+     * Writes a frame as a .PIC file. Frames that use a palette are written as version 1 (palette index per point),
+     * other frames as version 2 (RGB per point).
+     * @param location path of the .PIC file
+     * @param frame    the frame
+     */
+
+    public static void writeFile(String location, IldaFrame frame)
+    {
+        writeFile(location, frame, frame.isPalette() ? 1 : 2);
+    }
+
+    /**
+     * Writes a frame as a .PIC file
+     * @param location path of the .PIC file
+     * @param frame    the frame
+     * @param version  0 or 1 to write palette indices (only the first 64 colours are addressable), 2 to write RGB
+     */
+
+    public static void writeFile(String location, IldaFrame frame, int version)
+    {
+        byte[] b = getBytesFromFrame(frame, version);
+        if (b == null) return;
+        try {
+            Files.write(new File(location).toPath(), b);
+        } catch (Exception e) {
+            PApplet.println("Error when exporting PIC file: ", e);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Encodes a frame in the .PIC format
+     * @param frame   the frame
+     * @param version 0, 1 or 2
+     * @return the contents of the .PIC file, or null for an unsupported version
+     */
+
+    public static byte[] getBytesFromFrame(IldaFrame frame, int version)
+    {
+        if (version < 0 || version > 2) return null;
+        int recordSize = PicReader.recordSize(version);
+        int begin = PicReader.headerSize(version);
+
+        ByteBuffer buffer = ByteBuffer.allocate(begin + frame.countPoints() * recordSize);
+        buffer.put((byte) version);
+        buffer.position(begin);
+
+        PointBuffer points = frame.pointsAsBuffer();
+        for (int i = 0; i < points.size(); i++)
+        {
+            float x = points.getX(i);
+            float y = points.getY(i);
+            float z = points.getZ(i);
+            buffer.putShort(PointBuffer.toNative(x));
+            buffer.putShort(PointBuffer.toNative(y));
+            buffer.putShort(PointBuffer.toNative(z));
+
+            int status = 0x80;                  //not a normal vector
+            if (points.isBlanked(i)) status |= 0x40;
+            if (version < 2) status |= points.getPalIndex(i) & 0x3F;
+            buffer.put((byte) status);
+            buffer.put((byte) 0);
+
+            if (version == 2)
+            {
+                int colour = points.getColour(i);
+                buffer.put((byte) ((colour >> 16) & 0xFF));
+                buffer.put((byte) ((colour >> 8) & 0xFF));
+                buffer.put((byte) (colour & 0xFF));
+            }
+        }
+        return buffer.array();
+    }
+}
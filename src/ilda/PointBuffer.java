@@ -0,0 +1,396 @@
+package ilda;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Stores the points of a frame in primitive arrays instead of one IldaPoint object per point.
+ * Each property has its own array (x, y, z, colour, palette index) and the blanking flags are stored in a bit set,
+ * which saves memory, keeps the points together in memory and doesn't create garbage.
+ * <p>
+ * Coordinates are normally stored as floats between -1 and 1, like in IldaPoint. In native coordinate mode they are
+ * stored as the 16 bit integers of an ilda file, which halves the memory needed for coordinates.
+ * The getters and setters always use floats.
+ * </p>
+ * A PointBuffer can be used as the storage of an IldaFrame, see IldaFrame.getPointBuffer().
+ */
+public class PointBuffer
+{
+    static final float NATIVE_SCALE = 0.00003051757f;
+
+    protected int size = 0;
+    protected float[] x, y, z;
+    protected short[] nativeX, nativeY, nativeZ;
+    protected int[] colour;
+    protected long[] blanked;
+    protected byte[] palIndex;
+
+    public PointBuffer()
+    {
+        this(64);
+    }
+
+    public PointBuffer(int capacity)
+    {
+        this(capacity, false);
+    }
+
+    /**
+     * @param capacity          amount of points that fit in the buffer before it needs to grow
+     * @param nativeCoordinates store coordinates as 16 bit integers instead of floats
+     */
+
+    public PointBuffer(int capacity, boolean nativeCoordinates)
+    {
+        capacity = Math.max(capacity, 1);
+        if (nativeCoordinates)
+        {
+            nativeX = new short[capacity];
+            nativeY = new short[capacity];
+            nativeZ = new short[capacity];
+        } else
+        {
+            x = new float[capacity];
+            y = new float[capacity];
+            z = new float[capacity];
+        }
+        colour = new int[capacity];
+        blanked = new long[(capacity + 63) >> 6];
+        palIndex = new byte[capacity];
+    }
+
+    /**
+     * Copies a list of points into a new buffer
+     * @param points the points
+     * @return a buffer with the same points
+     */
+
+    public static PointBuffer fromPoints(List<IldaPoint> points)
+    {
+        PointBuffer buffer = new PointBuffer(points.size());
+        for (IldaPoint point : points)
+        {
+            buffer.add(point);
+        }
+        return buffer;
+    }
+
+    /**
+     * Creates an IldaPoint for every point in this buffer
+     * @return a list of new points with the same properties as in this buffer
+     */
+
+    public ArrayList<IldaPoint> toPoints()
+    {
+        ArrayList<IldaPoint> points = new ArrayList<IldaPoint>(Math.max(size, 10));
+        for (int i = 0; i < size; i++)
+        {
+            points.add(getPoint(i));
+        }
+        return points;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public int capacity()
+    {
+        return colour.length;
+    }
+
+    public boolean isNativeCoordinates()
+    {
+        return x == null;
+    }
+
+    public void ensureCapacity(int capacity)
+    {
+        if (capacity <= colour.length) return;
+        int newCapacity = Math.max(capacity, colour.length + (colour.length >> 1));
+        if (x != null)
+        {
+            x = Arrays.copyOf(x, newCapacity);
+            y = Arrays.copyOf(y, newCapacity);
+            z = Arrays.copyOf(z, newCapacity);
+        } else
+        {
+            nativeX = Arrays.copyOf(nativeX, newCapacity);
+            nativeY = Arrays.copyOf(nativeY, newCapacity);
+            nativeZ = Arrays.copyOf(nativeZ, newCapacity);
+        }
+        colour = Arrays.copyOf(colour, newCapacity);
+        blanked = Arrays.copyOf(blanked, (newCapacity + 63) >> 6);
+        palIndex = Arrays.copyOf(palIndex, newCapacity);
+    }
+
+    /**
+     * Removes all points, the capacity stays the same so the buffer can be reused without allocating
+     */
+
+    public void clear()
+    {
+        Arrays.fill(blanked, 0, (size + 63) >> 6, 0L);
+        size = 0;
+    }
+
+    /**
+     * Adds a point to the end of the buffer
+     * @return index of the new point
+     */
+
+    public int add(float x, float y, float z, int colour, boolean blanked, int palIndex)
+    {
+        if (size == this.colour.length) ensureCapacity(size + 1);
+        int i = size++;
+        setPosition(i, x, y, z);
+        this.colour[i] = colour;
+        setBlanked(i, blanked);
+        this.palIndex[i] = (byte) palIndex;
+        return i;
+    }
+
+    public int add(IldaPoint point)
+    {
+        return add(point.x, point.y, point.z, point.colour, point.blanked, point.palIndex);
+    }
+
+    /**
+     * Adds a copy of a point of another (or the same) buffer
+     * @param source the buffer with the point
+     * @param index  index of the point in the source buffer
+     * @return index of the new point
+     */
+
+    public int add(PointBuffer source, int index)
+    {
+        return add(source.getX(index), source.getY(index), source.getZ(index), source.colour[index], source.isBlanked(index), source.palIndex[index]);
+    }
+
+    /**
+     * Inserts a point, the points from the index onwards move up one place
+     * @param index where the point is inserted, between 0 and size()
+     */
+
+    public void insert(int index, float x, float y, float z, int colour, boolean blanked, int palIndex)
+    {
+        if (index < 0 || index > size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        ensureCapacity(size + 1);
+        int moved = size - index;
+        if (this.x != null)
+        {
+            System.arraycopy(this.x, index, this.x, index + 1, moved);
+            System.arraycopy(this.y, index, this.y, index + 1, moved);
+            System.arraycopy(this.z, index, this.z, index + 1, moved);
+        } else
+        {
+            System.arraycopy(nativeX, index, nativeX, index + 1, moved);
+            System.arraycopy(nativeY, index, nativeY, index + 1, moved);
+            System.arraycopy(nativeZ, index, nativeZ, index + 1, moved);
+        }
+        System.arraycopy(this.colour, index, this.colour, index + 1, moved);
+        System.arraycopy(this.palIndex, index, this.palIndex, index + 1, moved);
+
+        //Shift the blanking bits from the index onwards up by one
+        int word = index >> 6;
+        for (int w = size >> 6; w > word; w--)
+        {
+            this.blanked[w] = (this.blanked[w] << 1) | (this.blanked[w - 1] >>> 63);
+        }
+        long low = (1L << index) - 1;
+        this.blanked[word] = (this.blanked[word] & low) | ((this.blanked[word] & ~low) << 1);
+
+        size++;
+        setPosition(index, x, y, z);
+        this.colour[index] = colour;
+        setBlanked(index, blanked);
+        this.palIndex[index] = (byte) palIndex;
+    }
+
+    /**
+     * Replaces the contents of this buffer with a copy of another buffer
+     * @param source the buffer to copy
+     */
+
+    public void set(PointBuffer source)
+    {
+        clear();
+        ensureCapacity(source.size);
+        if (isNativeCoordinates() == source.isNativeCoordinates())
+        {
+            if (x != null)
+            {
+                System.arraycopy(source.x, 0, x, 0, source.size);
+                System.arraycopy(source.y, 0, y, 0, source.size);
+                System.arraycopy(source.z, 0, z, 0, source.size);
+            } else
+            {
+                System.arraycopy(source.nativeX, 0, nativeX, 0, source.size);
+                System.arraycopy(source.nativeY, 0, nativeY, 0, source.size);
+                System.arraycopy(source.nativeZ, 0, nativeZ, 0, source.size);
+            }
+        } else
+        {
+            for (int i = 0; i < source.size; i++)
+            {
+                setPosition(i, source.getX(i), source.getY(i), source.getZ(i));
+            }
+        }
+        System.arraycopy(source.colour, 0, colour, 0, source.size);
+        System.arraycopy(source.palIndex, 0, palIndex, 0, source.size);
+        System.arraycopy(source.blanked, 0, blanked, 0, (source.size + 63) >> 6);
+        size = source.size;
+    }
+
+    /**
+     * @return a new buffer with the same points
+     */
+
+    public PointBuffer copy()
+    {
+        PointBuffer copy = new PointBuffer(size, isNativeCoordinates());
+        copy.set(this);
+        return copy;
+    }
+
+    public IldaPoint getPoint(int i)
+    {
+        IldaPoint point = new IldaPoint(getX(i), getY(i), getZ(i), palIndex[i], isBlanked(i));
+        point.colour = colour[i];
+        return point;
+    }
+
+    public float getX(int i)
+    {
+        return x != null ? x[i] : nativeX[i] * NATIVE_SCALE;
+    }
+
+    public float getY(int i)
+    {
+        return y != null ? y[i] : nativeY[i] * -NATIVE_SCALE;
+    }
+
+    public float getZ(int i)
+    {
+        return z != null ? z[i] : nativeZ[i] * NATIVE_SCALE;
+    }
+
+    public int getColour(int i)
+    {
+        return colour[i];
+    }
+
+    public boolean isBlanked(int i)
+    {
+        return (blanked[i >> 6] & (1L << i)) != 0;
+    }
+
+    public int getPalIndex(int i)
+    {
+        return palIndex[i] & 0xff;
+    }
+
+    /**
+     * The position should be normalised so that x, y and z are between -1 and 1
+     */
+
+    public void setPosition(int i, float x, float y, float z)
+    {
+        if (this.x != null)
+        {
+            this.x[i] = x;
+            this.y[i] = y;
+            this.z[i] = z;
+        } else
+        {
+            nativeX[i] = toNative(x);
+            nativeY[i] = toNative(-y);
+            nativeZ[i] = toNative(z);
+        }
+    }
+
+    /**
+     * Sets the position directly in 16 bit ilda coordinates, as they appear in an ilda file (the y axis points up)
+     */
+
+    public void setNativePosition(int i, short x, short y, short z)
+    {
+        if (this.x != null)
+        {
+            setPosition(i, x * NATIVE_SCALE, y * -NATIVE_SCALE, z * NATIVE_SCALE);
+        } else
+        {
+            nativeX[i] = x;
+            nativeY[i] = y;
+            nativeZ[i] = z;
+        }
+    }
+
+    public void setColour(int i, int colour)
+    {
+        this.colour[i] = colour;
+    }
+
+    public void setBlanked(int i, boolean blanked)
+    {
+        if (blanked) this.blanked[i >> 6] |= 1L << i;
+        else this.blanked[i >> 6] &= ~(1L << i);
+    }
+
+    public void setPalIndex(int i, int palIndex)
+    {
+        this.palIndex[i] = (byte) palIndex;
+    }
+
+    /**
+     * Converts a coordinate to the 16 bit value of an ilda file, the inverse of the scale readers use (NATIVE_SCALE),
+     * so a coordinate that was read from a file is written back unchanged
+     */
+
+    static short toNative(float f)
+    {
+        int value = Math.round(f * 32768);
+        return (short) (value < -32768 ? -32768 : value > 32767 ? 32767 : value);
+    }
+
+    /**
+     * @param other another buffer
+     * @return true if both buffers contain the same points in the same order
+     */
+
+    public boolean contentEquals(PointBuffer other)
+    {
+        if (other == this) return true;
+        if (other.size != size) return false;
+        for (int i = 0; i < size; i++)
+        {
+            if (getX(i) != other.getX(i) || getY(i) != other.getY(i) || getZ(i) != other.getZ(i)
+                    || colour[i] != other.colour[i] || isBlanked(i) != other.isBlanked(i) || palIndex[i] != other.palIndex[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return a hash of the points, equal for buffers for which contentEquals() is true
+     */
+
+    public int contentHash()
+    {
+        int hash = 1;
+        for (int i = 0; i < size; i++)
+        {
+            hash = 31 * hash + Float.floatToIntBits(getX(i));
+            hash = 31 * hash + Float.floatToIntBits(getY(i));
+            hash = 31 * hash + Float.floatToIntBits(getZ(i));
+            hash = 31 * hash + colour[i];
+            hash = 31 * hash + (isBlanked(i) ? 1 : 0);
+            hash = 31 * hash + palIndex[i];
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,45 @@
+package ilda;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The raw point records of a frame in an ilda file, used as a key to find frames with identical points.
+ * Two payloads are equal if they have the same format, the same bytes and, for format 0 and 1 frames,
+ * the same palette (the palette determines the colours of the decoded points).
+ */
+class PointPayload
+{
+    private final ByteBuffer records;
+    private final int ildaVersion;
+    private final IldaPalette palette;
+    private final int hash;
+
+    /**
+     * @param records     view on exactly the point records, it should not be modified afterwards
+     * @param ildaVersion format of the records
+     * @param palette     palette in effect for format 0 and 1 frames, null otherwise
+     */
+
+    PointPayload(ByteBuffer records, int ildaVersion, IldaPalette palette)
+    {
+        this.records = records;
+        this.ildaVersion = ildaVersion;
+        this.palette = palette;
+        hash = records.hashCode() * 31 + ildaVersion;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o) return true;
+        if (!(o instanceof PointPayload)) return false;
+        PointPayload other = (PointPayload) o;
+        return hash == other.hash && ildaVersion == other.ildaVersion && palette == other.palette && records.equals(other.records);
+    }
+}
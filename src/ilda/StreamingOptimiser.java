@@ -0,0 +1,231 @@
+package ilda;
+
+/**
+ * Optimises points one at a time, as they are produced, instead of a whole frame at once.
+ * Every point that is added is written to the output right away, preceded by the dwell points of the point before it
+ * and the points interpolated between them. Only the previous point and the direction it was reached from are kept,
+ * so the result is the same as optimising the finished frame with Optimiser.optimiseSegment().
+ * <p>
+ * Reordering paths, simplifying and the point budget need the whole frame, see canStream(). IldaRenderer uses a
+ * StreamingOptimiser when the settings allow it, so endDraw() doesn't have to optimise the frame anymore.
+ * </p>
+ * Example:
+ * <pre>
+ * StreamingOptimiser optimiser = new StreamingOptimiser(settings);
+ * optimiser.begin(frame.getPointBuffer());
+ * optimiser.add(x, y, z, colour, blanked, 0);
+ * ...
+ * optimiser.end();
+ * </pre>
+ */
+public class StreamingOptimiser
+{
+    private OptimisationSettings settings;
+
+    //The settings in use since begin()
+    private OptimisationSettings active;
+    private PointBuffer output;
+    private int count;
+    private float maxDistLit;
+    private float maxDistBlank;
+    private boolean dwell;
+
+    //The previous point, and the last position before it that differs from it
+    private boolean started = false;
+    private float px, py, pz;
+    private int pColour, pPalIndex;
+    private boolean pBlanked;
+    private float ax, ay, az;
+    private boolean anchored;
+
+    public StreamingOptimiser(OptimisationSettings settings)
+    {
+        this.settings = settings;
+    }
+
+    public OptimisationSettings getSettings()
+    {
+        return settings;
+    }
+
+    /**
+     * Changing the settings takes effect at the next call to begin()
+     */
+
+    public void setSettings(OptimisationSettings settings)
+    {
+        this.settings = settings;
+    }
+
+    /**
+     * @param settings optimisation settings
+     * @return true if frames can be optimised point by point with these settings
+     */
+
+    public static boolean canStream(OptimisationSettings settings)
+    {
+        return !settings.reorderPaths && !settings.simplify && settings.getPointBudget() <= 0;
+    }
+
+    /**
+     * Starts writing optimised points to a buffer. If the buffer isn't empty, the points are added after its last point.
+     * @param output the buffer the optimised points are added to
+     */
+
+    public void begin(PointBuffer output)
+    {
+        begin(output, settings.maxDistLit, settings.maxDistBlank, true);
+    }
+
+    /**
+     * @param output receives the points, or null to only count them
+     */
+
+    void begin(PointBuffer output, float maxDistLit, float maxDistBlank, boolean dwell)
+    {
+        this.active = settings;
+        this.output = output;
+        this.maxDistLit = maxDistLit;
+        this.maxDistBlank = maxDistBlank;
+        this.dwell = dwell;
+        count = 0;
+        anchored = false;
+        started = output != null && output.size() > 0;
+        if (started)
+        {
+            int last = output.size() - 1;
+            setPrevious(output.getX(last), output.getY(last), output.getZ(last), output.getColour(last), output.isBlanked(last), output.getPalIndex(last));
+        }
+    }
+
+    /**
+     * Stops writing to the buffer passed to begin()
+     * @return amount of points written since begin()
+     */
+
+    public int end()
+    {
+        output = null;
+        started = false;
+        return count;
+    }
+
+    /**
+     * @return amount of points written since begin()
+     */
+
+    public int getCount()
+    {
+        return count;
+    }
+
+    public void add(IldaPoint point)
+    {
+        add(point.x, point.y, point.z, point.colour, point.blanked, point.palIndex & 0xff);
+    }
+
+    void add(PointBuffer source, int index)
+    {
+        add(source.getX(index), source.getY(index), source.getZ(index), source.getColour(index), source.isBlanked(index), source.getPalIndex(index));
+    }
+
+    /**
+     * Optimises a point and adds it to the output, see PointBuffer.add()
+     */
+
+    public void add(float x, float y, float z, int colour, boolean blanked, int palIndex)
+    {
+        if (!started)
+        {
+            emit(x, y, z, colour, blanked, palIndex);
+            setPrevious(x, y, z, colour, blanked, palIndex);
+            started = true;
+            return;
+        }
+
+        //Dwell on the previous point, now that the direction it continues in is known
+        if (dwell)
+        {
+            int dwellPoints = getDwellPoints(active, anchored, ax, ay, az, px, py, pz, pBlanked, x, y, z, blanked);
+            for (int k = 0; k < dwellPoints; k++)
+            {
+                emit(px, py, pz, pColour, pBlanked, pPalIndex);
+            }
+        }
+
+        float dpsq = (x - px) * (x - px) + (y - py) * (y - py) + (z - pz) * (z - pz);
+        float maxdistsqb = maxDistBlank * maxDistBlank;
+        float maxdistsql = maxDistLit * maxDistLit;
+        if ((blanked && dpsq > maxdistsqb && active.interpolateBlanked) || (!blanked && dpsq > maxdistsql && active.interpolateLit))
+        {
+            double dist = Math.sqrt(dpsq);
+            double maxDist = blanked ? maxDistBlank : maxDistLit;
+            int addedPoints = (int) (dist / maxDist);
+            if (output == null)
+            {
+                count += addedPoints + 1;
+            } else
+            {
+                output.ensureCapacity(output.size() + addedPoints + 2);
+                //The interpolated points get the properties of the point the jump goes to
+                for (int j = addedPoints; j >= 0; j--)
+                {
+                    float factor = (float) ((1 - (dist - j * maxDist) / dist));
+                    emit(x + (px - x) * factor, y + (py - y) * factor, z + (pz - z) * factor, colour, blanked, palIndex);
+                }
+            }
+        }
+
+        emit(x, y, z, colour, blanked, palIndex);
+        if (x != px || y != py || z != pz)
+        {
+            ax = px;
+            ay = py;
+            az = pz;
+            anchored = true;
+        }
+        setPrevious(x, y, z, colour, blanked, palIndex);
+    }
+
+    private void emit(float x, float y, float z, int colour, boolean blanked, int palIndex)
+    {
+        count++;
+        if (output != null) output.add(x, y, z, colour, blanked, palIndex);
+    }
+
+    private void setPrevious(float x, float y, float z, int colour, boolean blanked, int palIndex)
+    {
+        px = x;
+        py = y;
+        pz = z;
+        pColour = colour;
+        pBlanked = blanked;
+        pPalIndex = palIndex;
+    }
+
+    /**
+     * Calculates how often a point should be repeated so the scanners can settle on it.
+     * A point where the laser turns on or off gets blankDwellAmount extra points. A lit corner gets angleDwellFactor
+     * extra points for every 45 degrees the direction changes, so gentle curves don't get any.
+     *
+     * @param anchored    whether there is a previous point (a) at a different position than p
+     * @param blanked     whether the path to p is blanked
+     * @param nextBlanked whether the path from p to the next point (n) is blanked
+     * @return amount of copies of p to add after it
+     */
+
+    static int getDwellPoints(OptimisationSettings settings, boolean anchored, float ax, float ay, float az,
+                              float px, float py, float pz, boolean blanked, float nx, float ny, float nz, boolean nextBlanked)
+    {
+        if (blanked != nextBlanked) return settings.blankDwell ? Math.max(settings.blankDwellAmount, 0) : 0;
+        if (!settings.angleDwell || !anchored || blanked) return 0;
+
+        float v1x = px - ax, v1y = py - ay, v1z = pz - az;
+        float v2x = nx - px, v2y = ny - py, v2z = nz - pz;
+        double lengths = (double) (v1x * v1x + v1y * v1y + v1z * v1z) * (v2x * v2x + v2y * v2y + v2z * v2z);
+        if (lengths <= 0) return 0;
+        double cos = (v1x * v2x + v1y * v2y + v1z * v2z) / Math.sqrt(lengths);
+        double angle = Math.acos(Math.max(-1, Math.min(1, cos)));
+        return (int) (settings.angleDwellFactor * angle / (Math.PI / 4));
+    }
+}